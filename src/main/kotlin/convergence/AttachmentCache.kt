@@ -0,0 +1,177 @@
+package convergence
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.InputStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Keeps attachments that were recently downloaded, so an image bridged to several chats and uploaded to WebDAV is only
+ * downloaded once. Attachments up to [Settings.attachmentMemoryLimitBytes] are kept in memory, and bigger ones are
+ * spooled to a temp directory. Once everything cached adds up to more than [Settings.attachmentCacheMaxBytes], the
+ * least recently used attachments are evicted.
+ *
+ * An attachment that's evicted while it's still being read keeps working for that reader, since the file is only
+ * unlinked (on Windows, deleting it fails instead, so it's deleted on exit).
+ */
+object AttachmentCache {
+    // Entries are only opened while synchronized on entries, and only deleted once they've been taken out of it, so
+    // a spooled file can't be deleted between finding its entry and opening it.
+    private class Entry(val size: Long, val bytes: ByteArray?, val file: Path?) {
+        // Set once it's been evicted (or cleared), at which point its file may be gone. Guarded by synchronizing on
+        // entries.
+        var evicted = false
+
+        fun open(): InputStream = bytes?.let(::ByteArrayInputStream) ?: Files.newInputStream(file!!)
+    }
+
+    // Access ordered, so the eldest entry is the least recently used one. Guarded by synchronizing on it.
+    private val entries = LinkedHashMap<String, Entry>(16, 0.75f, true)
+    private var totalSize = 0L
+    // Downloads in progress, so a second request for the same attachment waits for the first instead of downloading.
+    private val loading = ConcurrentHashMap<String, CompletableFuture<Entry>>()
+    private val hitCount = AtomicLong()
+    private val missCount = AtomicLong()
+    private val downloadedBytes = AtomicLong()
+
+    private val spoolDirectory: Path by lazy {
+        Files.createTempDirectory("convergence-attachments").also { it.toFile().deleteOnExit() }
+    }
+
+    init {
+        MetricsReport.register {
+            listOf("Attachments: $hits cache hits, $misses downloads ($bytesDownloaded bytes), $size bytes cached.")
+        }
+    }
+
+    val hits get() = hitCount.get()
+    val misses get() = missCount.get()
+    /** How many bytes have been downloaded into the cache in total. */
+    val bytesDownloaded get() = downloadedBytes.get()
+    /** How many bytes the cache is holding right now, in memory and on disk. */
+    val size get() = synchronized(entries) { totalSize }
+
+    /**
+     * Opens the attachment cached under [key], calling [download] to fetch it if it isn't cached. Keys need to be
+     * unique across protocols, so they should start with the protocol's name.
+     */
+    fun open(key: String, download: () -> InputStream): InputStream {
+        synchronized(entries) { entries[key]?.open() }?.let {
+            hitCount.incrementAndGet()
+            return it
+        }
+        val future = CompletableFuture<Entry>()
+        loading.putIfAbsent(key, future)?.let {
+            val entry = try {
+                it.join()
+            } catch(e: CompletionException) {
+                throw e.cause ?: e
+            }
+            // If it's already been evicted again, it has to be downloaded again. The finished download may not have
+            // been taken out of loading yet, so it's taken out here, or this would just find it again.
+            synchronized(entries) { if (entry.evicted) null else entry.open() }?.let { stream ->
+                hitCount.incrementAndGet()
+                return stream
+            }
+            loading.remove(key, it)
+            return open(key, download)
+        }
+        try {
+            // It could have finished loading between checking the cache and getting here.
+            synchronized(entries) { entries[key]?.let { entry -> entry to entry.open() } }?.let { (entry, stream) ->
+                hitCount.incrementAndGet()
+                future.complete(entry)
+                return stream
+            }
+            val entry = fetch(download)
+            missCount.incrementAndGet()
+            val stream = store(key, entry)
+            future.complete(entry)
+            return stream
+        } catch(e: Exception) {
+            future.completeExceptionally(e)
+            throw e
+        } finally {
+            loading.remove(key, future)
+        }
+    }
+
+    fun clear() = synchronized(entries) {
+        entries.values.forEach {
+            it.evicted = true
+            delete(it)
+        }
+        entries.clear()
+        totalSize = 0
+        hitCount.set(0)
+        missCount.set(0)
+        downloadedBytes.set(0)
+    }
+
+    // Reads into memory until it goes over the limit, then moves what's been read so far into a file and streams the
+    // rest after it.
+    private fun fetch(download: () -> InputStream): Entry = download().use { stream ->
+        val limit = settings.attachmentMemoryLimitBytes
+        val buffer = ByteArrayOutputStream()
+        val chunk = ByteArray(8192)
+        while (buffer.size() <= limit) {
+            val read = stream.read(chunk)
+            if (read == -1) {
+                downloadedBytes.addAndGet(buffer.size().toLong())
+                return Entry(buffer.size().toLong(), buffer.toByteArray(), null)
+            }
+            buffer.write(chunk, 0, read)
+        }
+        val file = Files.createTempFile(spoolDirectory, "attachment", null)
+        try {
+            val size = Files.newOutputStream(file).use { out ->
+                buffer.writeTo(out)
+                buffer.size() + stream.transferTo(out)
+            }
+            downloadedBytes.addAndGet(size)
+            Entry(size, null, file)
+        } catch(e: Exception) {
+            Files.deleteIfExists(file)
+            throw e
+        }
+    }
+
+    // The newest entry is always kept, even if it's bigger than the limit by itself, and it's opened before anything
+    // else can evict it, so whoever asked for it can read it.
+    private fun store(key: String, entry: Entry): InputStream {
+        val evicted = mutableListOf<Entry>()
+        val stream = synchronized(entries) {
+            entries.put(key, entry)?.let {
+                totalSize -= it.size
+                evicted.add(it)
+            }
+            totalSize += entry.size
+            val iterator = entries.entries.iterator()
+            while (totalSize > settings.attachmentCacheMaxBytes && entries.size > 1) {
+                val eldest = iterator.next().value
+                iterator.remove()
+                totalSize -= eldest.size
+                evicted.add(eldest)
+            }
+            evicted.forEach { it.evicted = true }
+            entry.open()
+        }
+        evicted.forEach(::delete)
+        return stream
+    }
+
+    private fun delete(entry: Entry) {
+        val file = entry.file ?: return
+        try {
+            Files.deleteIfExists(file)
+        } catch(e: Exception) {
+            defaultLogger.warn("Couldn't delete cached attachment $file, so it'll be deleted on exit.", e)
+            file.toFile().deleteOnExit()
+        }
+    }
+}
@@ -5,7 +5,8 @@ import java.util.concurrent.atomic.AtomicInteger
 class BotState {
     val chatMap: MutableMap<Int, Chat> = mutableMapOf()
     val reverseChatMap: MutableMap<Chat, Int> = mutableMapOf()
-    val commands: MutableMap<Protocol, MutableMap<String, Command>> = mutableMapOf()
+    val commands: Map<Protocol, Map<String, Command>>
+        get() = CommandRegistry.snapshot.commands
     val protocols: MutableList<Protocol> = mutableListOf()
     val currentChatID: AtomicInteger = AtomicInteger(0)
     val aliasVars: MutableMap<String, (chat: Chat, sender: User) -> String?> = mutableMapOf(
@@ -14,9 +15,6 @@ class BotState {
         "%botname" to { c: Chat, _: User -> c.protocol.getUserName(c, c.protocol.getBot(c)) },
         "%chatname" to { c: Chat, _: User -> c.protocol.getChatName(c) }
     )
-    val messageCallbacks: MutableList<MessageCallback> = mutableListOf(
-        { chat, message, sender -> runCommand(chat, message, sender) }
-    )
 
     fun scopeStrToProtocol(s: String) = protocols.sortedBy { -it.name.length }
         .firstOrNull { s.substringBefore("(").startsWith(it.name) }
@@ -1,27 +1,321 @@
 @file:Suppress("UNCHECKED_CAST")
 package convergence
 
+import java.util.Collections
+import java.util.IdentityHashMap
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.RejectedExecutionHandler
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.LongAdder
 import kotlin.reflect.KClass
 
-val callbacks = mutableMapOf<KClass<out ChatEvent>, MutableList<ChatEvent>>(
-    ReceivedImages::class to mutableListOf(
-        ReceivedImages { chat: Chat, message: IncomingMessage?, sender: User, images: Array<Image> ->
-            runCommand(chat, message ?: return@ReceivedImages false, sender, images)
-            true
+private val dispatchers = ConcurrentHashMap<KClass<out ChatEvent>, EventDispatcher<*>>()
+
+/** What an [EventExecutor] does with an event when its queue is full. */
+enum class OverflowPolicy {
+    /** Makes the thread firing the event wait for room in the queue. */
+    BLOCK,
+    /** Drops the event that's been waiting the longest to make room. */
+    DROP_OLDEST,
+    /** Drops the event that was just fired. */
+    DROP_NEWEST
+}
+
+/**
+ * Runs asynchronous listeners for one type of event on [threads] daemon threads, with up to [capacity] events waiting.
+ * Past that, events are handled according to [policy].
+ */
+class EventExecutor(name: String, threads: Int, capacity: Int, val policy: OverflowPolicy) {
+    private val droppedCount = LongAdder()
+    private val threadCount = AtomicInteger()
+    private val queue = ArrayBlockingQueue<Runnable>(capacity.coerceAtLeast(1))
+    private val overflowHandler = RejectedExecutionHandler { task, _ ->
+        when(policy) {
+            OverflowPolicy.BLOCK -> queue.put(task)
+            OverflowPolicy.DROP_OLDEST -> {
+                // Another thread could take the spot we just made, so keep trying until it's in.
+                while (!queue.offer(task)) {
+                    if (queue.poll() != null)
+                        droppedCount.increment()
+                }
+            }
+            OverflowPolicy.DROP_NEWEST -> droppedCount.increment()
         }
+    }
+    private val pool = ThreadPoolExecutor(
+        threads.coerceAtLeast(1), threads.coerceAtLeast(1), 0L, TimeUnit.MILLISECONDS, queue,
+        { runnable -> Thread(runnable, "$name-${threadCount.incrementAndGet()}").apply { isDaemon = true } },
+        overflowHandler
     )
-)
+
+    /** How many events are waiting for a thread right now. */
+    val queueDepth get() = queue.size
+    /** How many events were dropped because the queue was full. */
+    val dropped get() = droppedCount.sum()
+
+    fun execute(task: Runnable) = pool.execute(task)
+}
+
+/**
+ * Where a listener wants events from: anything in one protocol, server, or chat, and if [emoji] is set, only events
+ * about that emoji (by [IEmoji.asString]).
+ */
+class EventScope private constructor(internal val location: Any, internal val level: Int, val emoji: String?) {
+    companion object {
+        @PublishedApi internal const val CHAT = 1
+        @PublishedApi internal const val SERVER = 2
+        @PublishedApi internal const val PROTOCOL = 4
+
+        fun of(chat: Chat, emoji: String? = null) = EventScope(chat, CHAT, emoji)
+        fun of(server: Server, emoji: String? = null) = EventScope(server, SERVER, emoji)
+        fun of(protocol: Protocol, emoji: String? = null) = EventScope(protocol, PROTOCOL, emoji)
+    }
+}
+
+/**
+ * Sends one type of [ChatEvent] to its listeners. Each event type's companion object is its dispatcher, so protocols
+ * call, say, `StartedTyping.dispatch(chat) { it(chat, user) }`, which calls each listener's typed invoke directly,
+ * without boxing or building a varargs array.
+ *
+ * Listeners are kept in an array that's replaced whenever one is added, so dispatching never locks or copies. How long
+ * each listener takes is recorded, and logged along with the rest of the [CommandMetrics].
+ *
+ * Listeners that only care about some chats can [subscribe] with [EventScope]s instead. They're indexed by chat,
+ * server, and protocol, and only the kinds of scope that someone has subscribed to are looked up, so an event
+ * somewhere nobody has subscribed to usually costs a single hash lookup.
+ *
+ * Listeners added with [addAsync] run on this event type's own [EventExecutor] instead of the thread that fired the
+ * event, so a slow one doesn't hold up anything else that thread has to do (like JDA's gateway events, for every
+ * guild). It uses [Settings.eventThreads] threads, one by default so listeners that aren't thread safe still see
+ * events one at a time, in order.
+ */
+open class EventDispatcher<T: ChatEvent>(val eventClass: KClass<T>) {
+    class Listener(val callback: ChatEvent, val name: String, val async: Boolean) {
+        val latency = LatencyHistogram()
+
+        /** Calls [invoke] with [callback], timing it and logging anything it throws. */
+        inline fun call(invoke: (ChatEvent) -> Boolean): Boolean {
+            val start = System.nanoTime()
+            return try {
+                invoke(callback)
+            } catch(e: Exception) {
+                defaultLogger.error("Uncaught exception in $name!", e)
+                false
+            } finally {
+                latency.record((System.nanoTime() - start) / 1000)
+            }
+        }
+    }
+
+    /** A listener that only gets events in its [scopes], which can be changed whenever what it cares about does. */
+    inner class Subscription internal constructor(val listener: Listener, scopes: Collection<EventScope>) {
+        @Volatile
+        var scopes: List<EventScope> = scopes.toList()
+            set(value) {
+                field = value.toList()
+                rebuildRoutes()
+            }
+    }
+
+    // The listeners for one chat, server, or protocol. The arrays for each emoji include the ones for any emoji.
+    @PublishedApi
+    internal class Routes(val anyEmoji: Array<Listener>, val byEmoji: Map<String, Array<Listener>>) {
+        fun forEmoji(emoji: String?) = if (emoji == null) anyEmoji else byEmoji[emoji] ?: anyEmoji
+    }
+
+    @Volatile
+    var listeners: Array<Listener> = emptyArray()
+        private set
+    private val subscriptions = mutableListOf<Subscription>()
+    @Volatile
+    @PublishedApi
+    internal var routes: Map<Any, Routes> = emptyMap()
+    // Which kinds of EventScope anyone has subscribed with, so the others don't have to be looked up.
+    @Volatile
+    @PublishedApi
+    internal var routedLevels = 0
+    @Volatile
+    private var hasAsync = false
+
+    @PublishedApi
+    internal val executor by lazy {
+        EventExecutor(
+            "${eventClass.simpleName}-event",
+            settings.eventThreads,
+            settings.eventQueueCapacity,
+            settings.eventOverflowPolicy
+        )
+    }
+
+    /** How many events are waiting for asynchronous listeners right now. */
+    val queueDepth get() = if (hasAsync) executor.queueDepth else 0
+    /** How many events asynchronous listeners missed because too many were waiting. */
+    val dropped get() = if (hasAsync) executor.dropped else 0
+
+    /** Every listener, subscribed or not. */
+    val allListeners: List<Listener>
+        get() = listeners.asList() + synchronized(this) { subscriptions.map { it.listener } }
+
+    init {
+        dispatchers[eventClass] = this
+        MetricsReport.register(::metricsSnapshot)
+    }
+
+    private fun metricsSnapshot(): List<String> {
+        val lines = mutableListOf<String>()
+        if (queueDepth > 0 || dropped > 0)
+            lines.add("${eventClass.simpleName} events: $queueDepth waiting, $dropped dropped.")
+        listeners.filter { it.latency.count > 0 }.forEach {
+            lines.add(
+                "${it.name}: ran ${it.latency.count} times, p50 ${formatLatency(it.latency.percentile(50.0))}, " +
+                        "p99 ${formatLatency(it.latency.percentile(99.0))}, max ${formatLatency(it.latency.max)}"
+            )
+        }
+        return lines
+    }
+
+    fun add(callback: T) = addUnchecked(callback, false)
+
+    /**
+     * Adds [callback] to be run on this event type's [EventExecutor]. Whatever it returns is ignored, since the event
+     * has already been dispatched by then.
+     */
+    fun addAsync(callback: T) = addUnchecked(callback, true)
+
+    @Synchronized
+    internal fun addUnchecked(callback: ChatEvent, async: Boolean = false) {
+        listeners += newListener(callback, async)
+    }
+
+    /** Adds [callback] to only get events in [scopes]. */
+    @Synchronized
+    fun subscribe(callback: T, scopes: Collection<EventScope>, async: Boolean = false): Subscription {
+        val subscription = Subscription(newListener(callback, async), scopes)
+        subscriptions.add(subscription)
+        rebuildRoutes()
+        return subscription
+    }
+
+    fun subscribeAsync(callback: T, scopes: Collection<EventScope>) = subscribe(callback, scopes, true)
+
+    private fun newListener(callback: ChatEvent, async: Boolean): Listener {
+        if (async)
+            hasAsync = true
+        return Listener(callback, "${eventClass.simpleName} listener ${allListeners.size + 1}", async)
+    }
+
+    @Synchronized
+    private fun rebuildRoutes() {
+        val byLocation = LinkedHashMap<Any, MutableList<Pair<Listener, String?>>>()
+        var levels = 0
+        for (subscription in subscriptions) {
+            for (scope in subscription.scopes) {
+                byLocation.getOrPut(scope.location) { mutableListOf() }.add(subscription.listener to scope.emoji)
+                levels = levels or scope.level
+            }
+        }
+        routes = byLocation.mapValues { (_, entries) ->
+            val anyEmoji = entries.filter { it.second == null }.map { it.first }.distinct()
+            val emojis = entries.mapNotNull { it.second }.toSet()
+            Routes(anyEmoji.toTypedArray(), emojis.associateWith { emoji ->
+                (anyEmoji + entries.filter { it.second == emoji }.map { it.first }).distinct().toTypedArray()
+            })
+        }
+        routedLevels = levels
+    }
+
+    /**
+     * Calls [invoke] with each unscoped listener in the order they were added, or queues it for asynchronous ones. A
+     * listener that throws is logged and skipped.
+     * @return Whether any synchronous listener handled the event.
+     */
+    inline fun dispatch(crossinline invoke: (T) -> Boolean) = dispatchTo(listeners, invoke)
+
+    /**
+     * Like [dispatch], but also calls the listeners subscribed to [chat], its server, or its protocol, and if [emoji]
+     * is given, the ones subscribed to only that emoji there. A listener subscribed to more than one of those is still
+     * only called once.
+     */
+    inline fun dispatch(chat: Chat, emoji: String? = null, crossinline invoke: (T) -> Boolean): Boolean =
+        dispatchTo(if (routedLevels == 0) listeners else routedListeners(chat, emoji), invoke)
+
+    // The unscoped listeners, then the ones routed to the chat, its server, and its protocol, each only once.
+    @PublishedApi
+    internal fun routedListeners(chat: Chat, emoji: String?): Array<Listener> {
+        val levels = routedLevels
+        val routes = routes
+        val routed = listOfNotNull(
+            if (levels and EventScope.CHAT != 0) routes[chat] else null,
+            if (levels and EventScope.SERVER != 0) (chat as? HasServer<*>)?.let { routes[it.server] } else null,
+            if (levels and EventScope.PROTOCOL != 0) routes[chat.protocol] else null
+        ).map { it.forEmoji(emoji) }.filter { it.isNotEmpty() }
+        if (routed.isEmpty())
+            return listeners
+        val seen = Collections.newSetFromMap(IdentityHashMap<Listener, Boolean>())
+        val matched = ArrayList<Listener>()
+        for (array in listOf(listeners) + routed)
+            array.filterTo(matched) { seen.add(it) }
+        return matched.toTypedArray()
+    }
+
+    /** Whether dispatching an event in [chat] about [emoji] would reach any listener. */
+    fun hasListeners(chat: Chat, emoji: String? = null) = hasListeners(chat) { it.forEmoji(emoji).isNotEmpty() }
+
+    /**
+     * Whether anything is listening in [chat] for any emoji at all. Working out which emoji an event is about can be
+     * slow, so this can be checked first to skip that for chats nobody's listening to.
+     */
+    fun hasListenersForAnyEmoji(chat: Chat) = hasListeners(chat) { it.anyEmoji.isNotEmpty() || it.byEmoji.isNotEmpty() }
+
+    private fun hasListeners(chat: Chat, matches: (Routes) -> Boolean): Boolean {
+        if (listeners.isNotEmpty())
+            return true
+        val levels = routedLevels
+        val routes = routes
+        fun hasRoute(location: Any?) = location != null && routes[location]?.let(matches) == true
+        return levels and EventScope.CHAT != 0 && hasRoute(chat) ||
+                levels and EventScope.SERVER != 0 && hasRoute((chat as? HasServer<*>)?.server) ||
+                levels and EventScope.PROTOCOL != 0 && hasRoute(chat.protocol)
+    }
+
+    @PublishedApi
+    internal inline fun dispatchTo(listeners: Array<Listener>, crossinline invoke: (T) -> Boolean): Boolean {
+        var handled = false
+        for (listener in listeners) {
+            if (listener.async)
+                executor.execute { listener.call { invoke(it as T) } }
+            else if (listener.call { invoke(it as T) })
+                handled = true
+        }
+        return handled
+    }
+
+    companion object {
+        /** The dispatchers for every type of event that's been used so far. */
+        fun all(): Collection<EventDispatcher<*>> = dispatchers.values
+    }
+}
+
+/** Every event type's listeners. This is a copy, so register listeners with [registerCallback]. */
+val callbacks: Map<KClass<out ChatEvent>, List<ChatEvent>>
+    get() = dispatchers.mapValues { (_, dispatcher) -> dispatcher.allListeners.map { it.callback } }
 
 fun registerCallback(event: ChatEvent) {
-    callbacks.putIfAbsent(event::class, ArrayList())
-    callbacks[event::class]?.add(event)
+    dispatchers[event::class]?.addUnchecked(event)
         ?: throw IllegalArgumentException(
             "Tried to register callback for unregistered class ${event::class.simpleName}."
         )
 }
 
+/**
+ * Runs every callback for [eventClass] with untyped [args]. This is only here for callers that don't know the event
+ * type ahead of time; everything else should use the event's [EventDispatcher].
+ */
 fun runCallbacks(eventClass: KClass<out ChatEvent>, vararg args: Any) =
-    callbacks[eventClass]?.filter { callback ->
+    dispatchers[eventClass]?.listeners?.map { it.callback }?.filter { callback ->
         callback(*args)
     }
 
@@ -176,6 +470,8 @@ interface ChatEvent {
 class ChangedNickname(val fct: (chat: Chat, user: User, oldName: String) -> Boolean): ChatEvent {
     override fun invoke(vararg args: Any) = invokeTyped(fct, args)
     fun invoke(chat: Chat, user: User, oldName: String) = fct(chat, user, oldName)
+
+    companion object: EventDispatcher<ChangedNickname>(ChangedNickname::class)
 }
 
 class ReceivedImages(val fct: (chat: Chat, message: IncomingMessage?, sender: User, image: Array<Image>) -> Boolean):
@@ -183,42 +479,65 @@ class ReceivedImages(val fct: (chat: Chat, message: IncomingMessage?, sender: Us
     override fun invoke(vararg args: Any): Boolean = invokeTyped(fct, args)
     fun invoke(chat: Chat, message: IncomingMessage?, sender: User, images: Array<Image>): Boolean =
         fct(chat, message ?: SimpleIncomingMessage(""), sender, images)
+
+    companion object: EventDispatcher<ReceivedImages>(ReceivedImages::class) {
+        init {
+            add(ReceivedImages { chat: Chat, message: IncomingMessage?, sender: User, images: Array<Image> ->
+                runCommand(chat, message ?: return@ReceivedImages false, sender, images)
+                true
+            })
+        }
+    }
 }
 
 class EditMessage(val fct: (oldMessage: String, sender: User, newMessage: String) -> Boolean): ChatEvent {
     override fun invoke(vararg args: Any): Boolean = invokeTyped(fct, args)
     fun invoke(oldMessage: String, sender: User, newMessage: String): Boolean = fct(oldMessage, sender, newMessage)
+
+    companion object: EventDispatcher<EditMessage>(EditMessage::class)
 }
 
 class MentionedUser(val fct: (Chat, message: IncomingMessage, sender: User, users: List<User>) -> Boolean): ChatEvent {
     override fun invoke(vararg args: Any) = invokeTyped(fct, args)
     fun invoke(chat: Chat, message: IncomingMessage, sender: User, users: List<User>) =
         fct(chat, message, sender, users)
+
+    companion object: EventDispatcher<MentionedUser>(MentionedUser::class)
 }
 
 class StartedTyping(val fct: (Chat, User) -> Boolean): ChatEvent {
     override fun invoke(vararg args: Any): Boolean = invokeTyped(fct, args)
     fun invoke(chat: Chat, user: User): Boolean = fct(chat, user)
+
+    companion object: EventDispatcher<StartedTyping>(StartedTyping::class)
 }
 
 class StoppedTyping(val fct: (Chat, User) -> Boolean): ChatEvent {
     override fun invoke(vararg args: Any): Boolean = invokeTyped(fct, args)
     fun invoke(chat: Chat, user: User): Boolean = fct(chat, user)
+
+    companion object: EventDispatcher<StoppedTyping>(StoppedTyping::class)
 }
 
 class ReceivedSticker(val fct: (Chat, Sticker, User) -> Boolean): ChatEvent {
     override fun invoke(vararg args: Any): Boolean = invokeTyped(fct, args)
     fun invoke(chat: Chat, sticker: Sticker, user: User): Boolean = fct(chat, sticker, user)
+
+    companion object: EventDispatcher<ReceivedSticker>(ReceivedSticker::class)
 }
 
 class ChangedAvailability(val fct: (Chat, User, Availability) -> Boolean): ChatEvent {
     override fun invoke(vararg args: Any): Boolean = invokeTyped(fct, args)
     fun invoke(chat: Chat, user: User, availability: Availability): Boolean = fct(chat, user, availability)
+
+    companion object: EventDispatcher<ChangedAvailability>(ChangedAvailability::class)
 }
 
 class ReadByUser(val fct: (chat: Chat, message: MessageHistory, user: User) -> Boolean): ChatEvent {
     override fun invoke(vararg args: Any): Boolean = invokeTyped(fct, args)
     fun invoke(chat: Chat, message: MessageHistory, user: User): Boolean = fct(chat, message, user)
+
+    companion object: EventDispatcher<ReadByUser>(ReadByUser::class)
 }
 
 class ReactionChanged(val fct: (User, Chat, IncomingMessage, IEmoji, oldAmt: Int, newAmt: Int) -> Boolean): ChatEvent {
@@ -231,4 +550,20 @@ class ReactionChanged(val fct: (User, Chat, IncomingMessage, IEmoji, oldAmt: Int
         oldAmount: Int,
         newAmount: Int
     ): Boolean = fct(sender, chat, message, emoji, oldAmount, newAmount)
+
+    companion object: EventDispatcher<ReactionChanged>(ReactionChanged::class)
+}
+
+class ReceivedMessage(val fct: (chat: Chat, message: IncomingMessage, sender: User) -> Boolean): ChatEvent {
+    override fun invoke(vararg args: Any): Boolean = invokeTyped(fct, args)
+    fun invoke(chat: Chat, message: IncomingMessage, sender: User): Boolean = fct(chat, message, sender)
+
+    companion object: EventDispatcher<ReceivedMessage>(ReceivedMessage::class) {
+        init {
+            add(ReceivedMessage { chat, message, sender ->
+                runCommand(chat, message, sender)
+                true
+            })
+        }
+    }
 }
@@ -3,6 +3,19 @@ package convergence
 import com.fasterxml.jackson.annotation.JsonIgnore
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize
 import com.fasterxml.jackson.databind.annotation.JsonSerialize
+import java.time.Duration
+import java.util.Collections
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.Semaphore
+import java.util.concurrent.SynchronousQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 
 
 enum class ArgumentType {
@@ -23,6 +36,30 @@ sealed class CommandLike(
 
 typealias CommandFunction = (List<String>, Chat, User) -> OutgoingMessage?
 
+/**
+ * Caps how many of the commands sharing it can run at once, so a burst of expensive commands can't tie up every
+ * command thread. Commands over the cap are turned away instead of waiting.
+ */
+class Bulkhead(val name: String, val maxConcurrent: Int) {
+    private val permits = Semaphore(maxConcurrent)
+    private val rejectedCount = AtomicLong()
+
+    val running get() = maxConcurrent - permits.availablePermits()
+    val rejected get() = rejectedCount.get()
+
+    fun tryAcquire() = permits.tryAcquire().also { if (!it) rejectedCount.incrementAndGet() }
+    fun release() = permits.release()
+}
+
+private val timedCommandThreadCount = AtomicInteger()
+// Bounded, since a command that ignores being interrupted keeps its thread after it times out, and those shouldn't be
+// able to pile up forever.
+private val timedCommandPool by lazy {
+    ThreadPoolExecutor(0, settings.timedCommandThreads, 60, TimeUnit.SECONDS, SynchronousQueue()) { runnable ->
+        Thread(runnable, "timed-command-${timedCommandThreadCount.incrementAndGet()}").apply { isDaemon = true }
+    }
+}
+
 data class Command(
     override val protocol: Protocol,
     override val name: String,
@@ -30,14 +67,81 @@ data class Command(
     @JsonIgnore val function: CommandFunction,
     @JsonIgnore val helpText: String,
     @JsonIgnore val syntaxText: String,
-    @JsonIgnore val permissions: CommandFunction
+    @JsonIgnore val permissions: CommandFunction,
+    @JsonIgnore val timeout: Duration? = null,
+    @JsonIgnore val bulkhead: Bulkhead? = null
 ): CommandLike(protocol, name) {
+    /** How many times this command has been stopped for running past its [timeout]. */
+    val timeouts get() = CommandMetrics[this].timeouts.sum()
+
     operator fun invoke(args: List<String>, chat: Chat, sender: User): OutgoingMessage? {
+        val stats = CommandMetrics[this]
         val errorMessage = permissions(args, chat, sender)
         if (errorMessage != null) {
+            stats.permissionDenials.increment()
             return errorMessage
         }
-        return replaceAliasVars(chat, function(args, chat, sender), sender)
+        val start = System.nanoTime()
+        try {
+            return replaceAliasVars(chat, runWithLimits(args, chat, sender), sender)
+        } catch(e: Exception) {
+            stats.errors.increment()
+            throw e
+        } finally {
+            stats.latency.record((System.nanoTime() - start) / 1000)
+        }
+    }
+
+    /**
+     * Returns a copy of this command that gets interrupted if it runs longer than [timeout], and that's turned away
+     * if [bulkhead] is full.
+     */
+    fun withLimits(timeout: Duration? = this.timeout, bulkhead: Bulkhead? = this.bulkhead) =
+        copy(timeout = timeout, bulkhead = bulkhead)
+
+    private fun runWithLimits(args: List<String>, chat: Chat, sender: User): OutgoingMessage? {
+        if (bulkhead != null && !bulkhead.tryAcquire())
+            return SimpleOutgoingMessage("Too many ${bulkhead.name} commands are running right now. Try again in a bit.")
+        if (timeout == null) {
+            try {
+                return function(args, chat, sender)
+            } finally {
+                bulkhead?.release()
+            }
+        }
+
+        // The bulkhead stays held until the task really finishes, even after it's timed out, so commands stuck in calls
+        // that ignore being interrupted still count against it. Whichever of the task and the timeout gets here first
+        // decides who releases it, since a task that's cancelled before it starts never runs its finally block.
+        val claimed = AtomicBoolean()
+        val future = try {
+            timedCommandPool.submit(Callable {
+                if (!claimed.compareAndSet(false, true))
+                    return@Callable null
+                try {
+                    function(args, chat, sender)
+                } finally {
+                    bulkhead?.release()
+                }
+            })
+        } catch(_: RejectedExecutionException) {
+            bulkhead?.release()
+            defaultLogger.warn("Turned away $name in $chat, since every timed command thread is busy.")
+            return SimpleOutgoingMessage("Too many commands are still running right now. Try again in a bit.")
+        }
+        return try {
+            future.get(timeout.toMillis(), TimeUnit.MILLISECONDS)
+        } catch(_: TimeoutException) {
+            future.cancel(true)
+            if (claimed.compareAndSet(false, true))
+                bulkhead?.release()
+            CommandMetrics[this].timeouts.increment()
+            defaultLogger.warn("Command $name timed out after $timeout in $chat.")
+            val limit = formatLatency(timeout.toNanos() / 1000)
+            SimpleOutgoingMessage("$name took longer than $limit, so it was stopped.")
+        } catch(e: ExecutionException) {
+            throw e.cause ?: e
+        }
     }
 
     constructor(
@@ -168,5 +272,14 @@ data class Alias(
     val command: Command,
     val args: List<String>
 ): CommandLike(scope.protocol, name) {
+    // Copied once when the alias is created, so every invocation can share it instead of concatenating a new list.
+    // It's unmodifiable, so a command casting its args back to a MutableList can't change the alias for everyone.
+    private val frozenArgs: List<String> = Collections.unmodifiableList(args.toList())
+
+    /**
+     * The args to run [command] with: this alias's args, then [extraArgs]. Neither list is copied.
+     */
+    fun argsWith(extraArgs: List<String>) = frozenArgs.concatView(extraArgs)
+
     fun commandText() = "${command.name} ${args.joinToString(" ")}"
 }
@@ -0,0 +1,104 @@
+package convergence
+
+import java.util.ArrayDeque
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Runs tasks off of the thread that submitted them, so slow work for one chat doesn't hold up any others. Tasks for
+ * the same chat still run one at a time in the order they arrived, so whatever they send stays in order.
+ *
+ * This uses a fixed pool of [threads] daemon threads rather than virtual threads, since we target Java 17. The pool is
+ * created the first time a task runs, so changing the setting it comes from needs a restart.
+ */
+open class ChatOrderedExecutor(
+    private val threadName: String,
+    private val threads: () -> Int,
+    private val capacity: () -> Int
+) {
+    private class ChatQueue {
+        val tasks = ArrayDeque<Runnable>()
+    }
+
+    // A chat has a queue here exactly while it has tasks waiting or running. Queues are only touched inside
+    // compute calls, so each chat's queue is always accessed by one thread at a time.
+    private val queues = ConcurrentHashMap<Chat, ChatQueue>()
+    private val pending = AtomicInteger()
+    private val maxPending = AtomicInteger()
+    private val rejectedCount = AtomicLong()
+    private val completedCount = AtomicLong()
+    private val threadCount = AtomicInteger()
+
+    private val pool: ExecutorService by lazy {
+        Executors.newFixedThreadPool(threads().coerceAtLeast(1)) { runnable ->
+            Thread(runnable, "$threadName-${threadCount.incrementAndGet()}").apply { isDaemon = true }
+        }
+    }
+
+    /** How many tasks are waiting or running right now. */
+    val queueDepth get() = pending.get()
+    /** The most tasks that have been waiting or running at once. */
+    val maxQueueDepth get() = maxPending.get()
+    /** How many chats have tasks waiting or running right now. */
+    val busyChats get() = queues.size
+    val rejected get() = rejectedCount.get()
+    val completed get() = completedCount.get()
+
+    /**
+     * Queues [task] to run once everything queued before it in [chat] has finished.
+     * @return false if [capacity] tasks are already waiting, in which case [task] won't run.
+     */
+    fun submit(chat: Chat, task: Runnable): Boolean {
+        val depth = pending.incrementAndGet()
+        if (depth > capacity()) {
+            pending.decrementAndGet()
+            rejectedCount.incrementAndGet()
+            return false
+        }
+        maxPending.accumulateAndGet(depth, ::maxOf)
+        var isIdle = false
+        queues.compute(chat) { _, queue ->
+            (queue ?: ChatQueue().also { isIdle = true }).apply { tasks.addLast(task) }
+        }
+        if (isIdle)
+            pool.execute { runNext(chat) }
+        return true
+    }
+
+    // Runs the chat's oldest task, then goes to the back of the line if it has more, so a busy chat can't hog a
+    // thread while other chats wait.
+    private fun runNext(chat: Chat) {
+        var task: Runnable? = null
+        queues.computeIfPresent(chat) { _, queue -> queue.also { task = it.tasks.peekFirst() } }
+        try {
+            task?.run()
+        } catch(e: Exception) {
+            defaultLogger.error("Uncaught exception in $threadName task for $chat!", e)
+        } finally {
+            pending.decrementAndGet()
+            completedCount.incrementAndGet()
+            var hasMore = false
+            queues.computeIfPresent(chat) { _, queue ->
+                queue.tasks.pollFirst()
+                if (queue.tasks.isEmpty()) null else queue.also { hasMore = true }
+            }
+            if (hasMore)
+                pool.execute { runNext(chat) }
+        }
+    }
+}
+
+/**
+ * Runs commands, one at a time per chat, on [Settings.commandThreads] threads, with up to
+ * [Settings.commandQueueCapacity] waiting.
+ */
+object CommandExecutor: ChatOrderedExecutor("command", { settings.commandThreads }, { settings.commandQueueCapacity }) {
+    init {
+        MetricsReport.register {
+            listOf("Command queue: $queueDepth waiting (max $maxQueueDepth), $completed completed, $rejected rejected.")
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package convergence
+
+import com.fasterxml.jackson.annotation.JsonInclude
+import com.fasterxml.jackson.databind.SerializationFeature
+import java.io.BufferedWriter
+import java.nio.file.Files
+import java.nio.file.NoSuchFileException
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+
+/**
+ * Keeps scheduled commands in an append-only journal next to settings.json, so scheduling, unscheduling, or running a
+ * command appends one line instead of rewriting the whole settings file. Each line either adds a command or removes
+ * one by ID, and replaying them in order gives the commands that are still scheduled.
+ *
+ * Once the journal has over [COMPACT_MIN_RECORDS] lines and more than twice as many as there are commands, it's
+ * rewritten with just the commands that are left, so it doesn't grow forever.
+ */
+object CommandJournal {
+    private const val COMPACT_MIN_RECORDS = 1000
+
+    // Exactly one of these is set.
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private data class Record(val add: ScheduledCommand? = null, val remove: Int? = null)
+
+    private val recordWriter = objectMapper.writer().without(SerializationFeature.INDENT_OUTPUT)
+    private val live = LinkedHashMap<Int, ScheduledCommand>()
+    private var output: BufferedWriter? = null
+    private var openPath: Path? = null
+    private var records = 0
+
+    val defaultPath: Path get() = convergencePath.resolve("scheduledCommands.jsonl")
+    /** How many lines are in the journal right now. */
+    val size @Synchronized get() = records
+
+    /**
+     * Replays the journal at [path], compacting it if it has anything that's been removed since.
+     * If there's no journal yet, it's started with [legacy], the commands that used to be kept in settings.json.
+     * @return The commands that are still scheduled, by ID.
+     */
+    @Synchronized
+    fun open(path: Path = defaultPath, legacy: Map<Int, ScheduledCommand> = mapOf()): Map<Int, ScheduledCommand> {
+        close()
+        live.clear()
+        openPath = path
+        val lines = try {
+            Files.readAllLines(path)
+        } catch(_: NoSuchFileException) {
+            settingsLogger.info("No scheduled command journal at $path, so starting one with ${legacy.size} commands.")
+            live.putAll(legacy)
+            compact()
+            return live.toMap()
+        }
+        lines.forEachIndexed { i, line ->
+            if (line.isBlank())
+                return@forEachIndexed
+            // A line that can't be read is most likely the last one, cut off by a crash while it was being written.
+            val record = try {
+                objectMapper.readValue(line, Record::class.java)
+            } catch(e: Exception) {
+                settingsLogger.warn("Skipping line ${i + 1} of $path, since it couldn't be read: ${e.message}")
+                return@forEachIndexed
+            }
+            record.add?.let { live[it.id] = it }
+            record.remove?.let { live.remove(it) }
+        }
+        records = lines.size
+        if (records > live.size)
+            compact()
+        return live.toMap()
+    }
+
+    @Synchronized
+    fun add(command: ScheduledCommand) {
+        live[command.id] = command
+        append(Record(add = command))
+    }
+
+    @Synchronized
+    fun remove(id: Int) {
+        if (live.remove(id) != null)
+            append(Record(remove = id))
+    }
+
+    @Synchronized
+    fun close() {
+        try {
+            output?.close()
+        } catch(e: Exception) {
+            settingsLogger.error("Failed to close the scheduled command journal!", e)
+        }
+        output = null
+    }
+
+    /** Closes the journal and forgets everything in it, without touching the file. */
+    @Synchronized
+    fun clear() {
+        close()
+        live.clear()
+        openPath = null
+        records = 0
+    }
+
+    private fun append(record: Record) {
+        try {
+            val out = output ?: Files.newBufferedWriter(
+                openPath ?: defaultPath.also { openPath = it },
+                StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND
+            ).also { output = it }
+            out.write(recordWriter.writeValueAsString(record))
+            out.newLine()
+            out.flush()
+            records++
+        } catch(e: Exception) {
+            settingsLogger.error("Failed to write to the scheduled command journal!", e)
+            return
+        }
+        if (records > COMPACT_MIN_RECORDS && records > live.size * 2)
+            compact()
+    }
+
+    // Writes the commands that are left to a new file and moves it over the old one, so a crash partway through
+    // leaves the old journal as it was.
+    private fun compact() {
+        val path = openPath ?: defaultPath.also { openPath = it }
+        close()
+        val temp = path.resolveSibling("${path.fileName}.tmp")
+        try {
+            Files.newBufferedWriter(temp).use { out ->
+                live.values.forEach {
+                    out.write(recordWriter.writeValueAsString(Record(add = it)))
+                    out.newLine()
+                }
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+            records = live.size
+        } catch(e: Exception) {
+            settingsLogger.error("Failed to compact the scheduled command journal at $path!", e)
+        }
+    }
+}
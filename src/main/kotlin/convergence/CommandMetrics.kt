@@ -0,0 +1,115 @@
+package convergence
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.LongAccumulator
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * A histogram of latencies in microseconds. Like an HDR histogram, each power of two is split into 16 buckets, so
+ * every recorded value is kept to within about 6% whether it's a few microseconds or several hours, in a fixed
+ * ~5KB. Recording is a couple of atomic increments, so it's cheap enough to run on every command.
+ */
+class LatencyHistogram {
+    private val counts = AtomicLongArray(BUCKETS)
+    private val total = LongAdder()
+    private val sum = LongAdder()
+    private val maxValue = LongAccumulator(::maxOf, 0)
+
+    val count get() = total.sum()
+    val max get() = maxValue.get()
+    val mean get() = count.let { if (it == 0L) 0L else sum.sum() / it }
+
+    fun record(micros: Long) {
+        val value = micros.coerceIn(0, MAX_VALUE)
+        counts.incrementAndGet(bucketOf(value))
+        total.increment()
+        sum.add(value)
+        maxValue.accumulate(value)
+    }
+
+    /**
+     * Gets the smallest value that [percentile]% of recorded values are at or below, rounded up to the end of its
+     * bucket, or 0 if nothing has been recorded.
+     */
+    fun percentile(percentile: Double): Long {
+        val target = Math.ceil(count * percentile / 100.0).toLong().coerceAtLeast(1)
+        var seen = 0L
+        for (i in 0 until BUCKETS) {
+            seen += counts.get(i)
+            if (seen >= target)
+                return minOf(bucketEnd(i), max)
+        }
+        return max
+    }
+
+    companion object {
+        private const val SUB_BUCKET_BITS = 4
+        private const val SUB_BUCKETS = 1 shl SUB_BUCKET_BITS
+        private const val MAGNITUDES = 40
+        private const val MAX_VALUE = (1L shl MAGNITUDES) - 1
+        private const val BUCKETS = SUB_BUCKETS * (MAGNITUDES - SUB_BUCKET_BITS + 1)
+
+        // Values under 16 get a bucket each. Above that, a value's highest set bit picks its row of 16 buckets, and
+        // the next four bits pick the bucket in that row.
+        private fun bucketOf(value: Long): Int {
+            if (value < SUB_BUCKETS)
+                return value.toInt()
+            val shift = 63 - java.lang.Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS
+            return SUB_BUCKETS * (shift + 1) + (value ushr shift).toInt() - SUB_BUCKETS
+        }
+
+        private fun bucketEnd(bucket: Int): Long {
+            if (bucket < SUB_BUCKETS)
+                return bucket.toLong()
+            val shift = bucket / SUB_BUCKETS - 1
+            return ((SUB_BUCKETS + bucket % SUB_BUCKETS + 1).toLong() shl shift) - 1
+        }
+    }
+}
+
+/** Everything [CommandMetrics] tracks for one command. */
+class CommandStats(val protocolName: String, val name: String) {
+    val latency = LatencyHistogram()
+    val errors = LongAdder()
+    val permissionDenials = LongAdder()
+    val timeouts = LongAdder()
+
+    /** Roughly how much time has been spent running this command, in microseconds. */
+    val totalTime get() = latency.mean * latency.count
+
+    override fun toString() = "$protocolName/$name: ran ${latency.count} times, " +
+            "p50 ${formatLatency(latency.percentile(50.0))}, p99 ${formatLatency(latency.percentile(99.0))}, " +
+            "max ${formatLatency(latency.max)}, ${errors.sum()} errors, ${permissionDenials.sum()} denied, " +
+            "${timeouts.sum()} timed out"
+}
+
+fun formatLatency(micros: Long) = when {
+    micros < 1000 -> "${micros}µs"
+    micros < 1_000_000 -> "%.1fms".format(micros / 1000.0)
+    else -> "%.2fs".format(micros / 1_000_000.0)
+}
+
+/**
+ * Keeps latency and error counts for every command that's run, broken out by protocol and command name, so we can
+ * see which commands are slow or failing. They can be seen with the stats command, and are logged with the rest of
+ * the [MetricsReport].
+ */
+object CommandMetrics {
+    private data class Key(val protocolName: String, val name: String)
+
+    private val stats = ConcurrentHashMap<Key, CommandStats>()
+
+    init {
+        MetricsReport.register { all().map { it.toString() } }
+    }
+
+    operator fun get(command: Command): CommandStats = stats.computeIfAbsent(Key(command.protocol.name, command.name)) {
+        CommandStats(it.protocolName, it.name)
+    }
+
+    /** All the commands that have been run, with the ones that have taken the most time in total first. */
+    fun all(): List<CommandStats> = stats.values.sortedByDescending { it.totalTime }
+
+    fun clear() = stats.clear()
+}
@@ -1,11 +1,19 @@
 package convergence
 
+import org.antlr.v4.runtime.BailErrorStrategy
 import org.antlr.v4.runtime.CharStreams
 import org.antlr.v4.runtime.CommonToken
 import org.antlr.v4.runtime.CommonTokenStream
+import org.antlr.v4.runtime.ConsoleErrorListener
+import org.antlr.v4.runtime.DefaultErrorStrategy
 import org.antlr.v4.runtime.ParserRuleContext
+import org.antlr.v4.runtime.Token
+import org.antlr.v4.runtime.atn.PredictionMode
+import org.antlr.v4.runtime.misc.ParseCancellationException
 import org.antlr.v4.runtime.tree.ErrorNode
 import org.antlr.v4.runtime.tree.TerminalNode
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
 
 class InvalidCommandParseException: Exception {
     constructor(msg: String): super(msg)
@@ -13,29 +21,37 @@ class InvalidCommandParseException: Exception {
 }
 
 data class CommandWithArgs(var command: Command, var args: List<String>) {
-    constructor(alias: Alias, args: List<String>): this(alias.command, alias.args + args)
+    constructor(alias: Alias, args: List<String>): this(alias.command, alias.argsWith(args))
 }
 
 class InvalidEscapeSequenceException(message: String): Exception(message)
 
-private fun <CommandType: CommandLike, ScopeType> commandAvailable(
-    list: MutableMap<ScopeType, MutableMap<String, CommandType>>,
-    scope: ScopeType,
-    command: String
-) = scope in list && command in list[scope]!!
-
-fun getCommand(command: String, chat: Chat): CommandLike {
-    return when {
-        // Chat Alias
-        commandAvailable(settings.aliases, chat, command) -> settings.aliases[chat]!![command]
-        // Server Alias
-        chat is HasServer<*> && commandAvailable(settings.aliases, chat.server, command) -> settings.aliases[chat.server]!![command]
-        // Protocol Command
-        commandAvailable(bot.commands, chat.protocol, command) -> bot.commands[chat.protocol]!![command]
-        // Universal Command
-        commandAvailable(bot.commands, UniversalProtocol, command) -> bot.commands[UniversalProtocol]!![command]
-        else -> null
-    } ?: throw CommandDoesNotExist(command)
+fun getCommand(command: String, chat: Chat): CommandLike =
+    CommandResolution.commandsIn(chat)[command] ?: throw CommandDoesNotExist(command)
+
+/**
+ * Every command and alias usable in each chat, flattened into one map so resolving a command is a single lookup.
+ * A chat's table is built the first time it's needed, and rebuilt the first time it's used after the registry changes.
+ */
+object CommandResolution {
+    private class Table(val version: Long, val commands: Map<String, CommandLike>)
+
+    private val tables = ConcurrentHashMap<Chat, Table>()
+
+    fun commandsIn(chat: Chat): Map<String, CommandLike> {
+        val registry = CommandRegistry.snapshot
+        tables[chat]?.let { if (it.version == registry.version) return it.commands }
+        return Table(registry.version, buildTable(chat, registry)).also { tables[chat] = it }.commands
+    }
+
+    // Later scopes take priority: chat aliases, then server aliases, then protocol commands, then universal commands.
+    private fun buildTable(chat: Chat, registry: RegistrySnapshot) = HashMap<String, CommandLike>().apply {
+        registry.commands[UniversalProtocol]?.let { putAll(it) }
+        registry.commands[chat.protocol]?.let { putAll(it) }
+        if (chat is HasServer<*>)
+            registry.aliases[chat.server]?.let { putAll(it) }
+        registry.aliases[chat]?.let { putAll(it) }
+    }
 }
 
 private val escapeMap = mapOf(
@@ -52,36 +68,179 @@ private val escapeMap = mapOf(
 fun parseCommand(command: String, chat: Chat): CommandWithArgs? =
     parseCommand(command, settings.commandDelimiters.getOrDefault(chat, DEFAULT_COMMAND_DELIMITER), chat)
 
-@SuppressWarnings("ThrowsCount")
 fun parseCommand(command: String, commandDelimiter: String, chat: Chat): CommandWithArgs? {
     // Check for the command delimiter, so the grammar doesn't have to worry about it
     if (!command.startsWith(commandDelimiter) || command.isEmpty() || command == commandDelimiter)
         return null
     if (command.startsWith(commandDelimiter + commandDelimiter))
         return null
-    // Set up ANTLR and fill the token stream so all tokens are available for inspection.
+    // Taken before resolving anything, so a registry change partway through makes this parse's entry stale.
+    val version = CommandRegistry.snapshot.version
+    ParsedCommandCache[commandDelimiter, command, chat]?.let { return it }
     val input = command.substring(commandDelimiter.length)
-    val chars = CharStreams.fromString(input, chat.name)
-    val lexer = CommandLexer(chars)
+    // Most commands are just a name and some plain words, so only bring in ANTLR when the fast path can't handle it.
+    val (commandName, args) = tokenizePlainCommand(input) ?: tokenizeWithGrammar(command, input, chat.name)
+
+    val commandWithArgs = when(val cmd = getCommand(commandName.lowercase(), chat)) {
+        is Command -> CommandWithArgs(cmd, args)
+        is Alias -> CommandWithArgs(cmd, args)
+    }
+    ParsedCommandCache[commandDelimiter, command, chat, version] = commandWithArgs
+    return commandWithArgs
+}
+
+/**
+ * A bounded LRU cache of parsed commands, so text that gets sent over and over (scheduled commands, aliases run from
+ * slash commands, and so on) skips tokenizing and command lookup. Entries are stamped with the [CommandRegistry]
+ * version they were resolved against, and ones from an older version are misses, so registering or removing a command
+ * or alias never has to go through the cache, and a parse that finishes after one changed can't put its stale result
+ * back in. The delimiter is part of the key, so entries parsed with a chat's old delimiter just age out.
+ */
+object ParsedCommandCache {
+    const val MAX_SIZE = 1024
+
+    private data class Key(val delimiter: String, val text: String, val chat: Chat)
+
+    private class Entry(val version: Long, val commandWithArgs: CommandWithArgs)
+
+    private val cache = object: LinkedHashMap<Key, Entry>(64, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Key, Entry>?) = size > MAX_SIZE
+    }
+    private val hitCount = AtomicLong()
+    private val missCount = AtomicLong()
+
+    val hits get() = hitCount.get()
+    val misses get() = missCount.get()
+    val size get() = synchronized(cache) { cache.size }
+
+    operator fun get(delimiter: String, text: String, chat: Chat): CommandWithArgs? {
+        val version = CommandRegistry.snapshot.version
+        val cached = synchronized(cache) { cache[Key(delimiter, text, chat)] }?.takeIf { it.version == version }
+        (if (cached == null) missCount else hitCount).incrementAndGet()
+        // CommandWithArgs is mutable, so don't hand out the cached instance itself.
+        return cached?.commandWithArgs?.copy()
+    }
+
+    /** Caches [commandWithArgs], which was resolved against [version] of the [CommandRegistry]. */
+    operator fun set(delimiter: String, text: String, chat: Chat, version: Long, commandWithArgs: CommandWithArgs) {
+        synchronized(cache) { cache[Key(delimiter, text, chat)] = Entry(version, commandWithArgs.copy()) }
+    }
+
+    fun clear() = synchronized(cache) { cache.clear() }
+}
+
+// The grammar's Whitespace token is \p{White_Space}, which isn't quite the same set as Char.isWhitespace().
+private fun Char.isCommandWhitespace() = when(this) {
+    in '\u0009'..'\u000d', ' ', '\u0085', '\u00a0', '\u1680', in '\u2000'..'\u200a', '\u2028', '\u2029', '\u202f',
+    '\u205f', '\u3000' -> true
+    else -> false
+}
+
+private fun Char.isCommandNameChar() = this in 'a'..'z' || this in 'A'..'Z' || this in '0'..'9'
+
+/**
+ * Splits [input] (a command without its delimiter) into its name and arguments in a single pass, without ANTLR.
+ * Only handles the common case of an alphanumeric name followed by whitespace-separated arguments.
+ * @return null if [input] has quotes, escapes, or anything else that needs the full grammar.
+ */
+internal fun tokenizePlainCommand(input: String): Pair<String, List<String>>? {
+    var i = 0
+    while (i < input.length && input[i].isCommandNameChar())
+        i++
+    if (i == 0 || (i < input.length && !input[i].isCommandWhitespace()))
+        return null
+    val commandName = input.substring(0, i)
+
+    var args: MutableList<String>? = null
+    while (i < input.length) {
+        if (input[i].isCommandWhitespace()) {
+            i++
+            continue
+        }
+        val start = i
+        while (i < input.length && !input[i].isCommandWhitespace()) {
+            if (input[i] == '"' || input[i] == '\\')
+                return null
+            i++
+        }
+        (args ?: ArrayList<String>(4).also { args = it }).add(input.substring(start, i))
+    }
+    return commandName to (args ?: emptyList())
+}
+
+// Collects invalid escapes as they're lexed, so the token stream doesn't need a second pass to find them.
+private class EscapeCheckingLexer: CommandLexer(null) {
+    var invalidEscapes: MutableList<String>? = null
+
+    override fun emit(): Token = super.emit().also {
+        if (it.type == InvalidEscape)
+            (invalidEscapes ?: mutableListOf<String>().also { list -> invalidEscapes = list }).add(it.text)
+    }
+}
+
+/**
+ * A lexer and parser that get reset for each command instead of being rebuilt. ANTLR's lexers and parsers aren't
+ * thread-safe, so each thread gets its own; the DFA caches behind them are static, so they're shared either way.
+ */
+private class GrammarParser {
+    val lexer = EscapeCheckingLexer()
     val tokens = CommonTokenStream(lexer)
-    tokens.fill()
+    val parser = CommandParser(tokens).apply { buildParseTree = true }
+
+    fun reset(input: String, sourceName: String) {
+        lexer.invalidEscapes = null
+        lexer.inputStream = CharStreams.fromString(input, sourceName)
+        tokens.tokenSource = lexer
+        parser.tokenStream = tokens
+    }
+
+    /**
+     * Parses with SLL prediction first, which is faster and handles nearly every command, then falls back to full LL
+     * with the default error recovery if SLL can't, so errors are reported exactly as before.
+     */
+    fun parse(): CommandParser.CommandContext {
+        parser.interpreter.predictionMode = PredictionMode.SLL
+        parser.errorHandler = BailErrorStrategy()
+        parser.removeErrorListeners()
+        return try {
+            parser.command()
+        } catch(_: ParseCancellationException) {
+            tokens.seek(0)
+            parser.reset()
+            parser.interpreter.predictionMode = PredictionMode.LL
+            parser.errorHandler = DefaultErrorStrategy()
+            parser.addErrorListener(ConsoleErrorListener.INSTANCE)
+            parser.command()
+        }
+    }
+}
+
+private val grammarParser = ThreadLocal.withInitial { GrammarParser() }
+
+/**
+ * Splits [input] into its name and arguments using the full ANTLR grammar, handling quotes and escape sequences.
+ */
+@SuppressWarnings("ThrowsCount")
+internal fun tokenizeWithGrammar(command: String, input: String, sourceName: String): Pair<String, List<String>> {
+    // Fill the token stream so all tokens are available for inspection.
+    val grammar = grammarParser.get()
+    grammar.reset(input, sourceName)
+    grammar.tokens.fill()
 
     // Check for invalid escape sequences before parsing. This must be outside the
     // try-catch below so that InvalidEscapeSequenceException propagates to the caller
     // rather than being wrapped in InvalidCommandParseException.
-    val invalidEscapes = tokens.tokens.filter { it.type == CommandParser.InvalidEscape }
-    if (invalidEscapes.isNotEmpty())
+    grammar.lexer.invalidEscapes?.let { invalidEscapes ->
         throw InvalidEscapeSequenceException(
             "Command \"$command\" contains the following invalid escape sequences: \"${
-                invalidEscapes.joinToString("\", \"") { it.text }
+                invalidEscapes.joinToString("\", \"")
             }\"."
         )
+    }
 
     val tree = try {
-        val parser = CommandParser(tokens)
-        parser.buildParseTree = true
         // Read a command
-        parser.command()
+        grammar.parse()
     } catch(e: Exception) {
         throw InvalidCommandParseException(e)
     }
@@ -97,13 +256,34 @@ fun parseCommand(command: String, commandDelimiter: String, chat: Chat): Command
     if (tree.exception != null)
         throw InvalidCommandParseException(tree.exception)
 
-    val commandName = tree.commandName().text
-    val args = tokenArgsToStringArgs(tree)
+    return tree.commandName().text to tokenArgsToStringArgs(tree)
+}
 
-    val cmd = commandName?.let { getCommand(it.lowercase(), chat) } ?: return null
-    return when(cmd) {
-        is Command -> CommandWithArgs(cmd, args)
-        is Alias -> CommandWithArgs(cmd, args)
+// Commands covering each kind of token and argument, so the DFA caches are already built for the first real command.
+private val warmUpCorpus = listOf(
+    "echo hello world",
+    "echo \"quoted argument\" unquoted",
+    "echo \"unclosed quote",
+    "echo \\t\\n\\\"\\\\ \\u00e9\\u00E9 \\101\\7\\377",
+    "echo \"\\t tab\\u0041 \\101\"",
+    "alias greet echo \"hi there\" \\u0021",
+    "schedule \"in 5 minutes\" echo done",
+    "echo ünïcödé \"ünïcödé quoted\"",
+    "echo.cmd",
+    "echo \\q \\u12 \\400",
+)
+
+/**
+ * Parses [warmUpCorpus] with the full grammar on the calling thread, so the first command a user sends doesn't have
+ * to pay for building ANTLR's DFA caches.
+ */
+fun warmUpCommandParser() {
+    for (command in warmUpCorpus) {
+        try {
+            tokenizeWithGrammar(command, command, "warm-up")
+        } catch(_: Exception) {
+            // Some of the corpus is invalid on purpose, to warm up the error paths too.
+        }
     }
 }
 
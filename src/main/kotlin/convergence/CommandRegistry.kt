@@ -2,38 +2,193 @@ package convergence
 
 import java.io.ByteArrayOutputStream
 import java.io.PrintStream
+import java.util.concurrent.ConcurrentHashMap
 
 class CommandDoesNotExist(cmd: String): Exception(cmd)
 
 /**
- * Adds a command to the command registry.
- * @return true if a command with that name does not already exist in the registry, false otherwise.
+ * One version of every registered command and alias. Snapshots are never modified after they're published, so they
+ * can be read from any thread without locking.
  */
-fun registerCommand(command: Command): Boolean {
-    val protocol = command.protocol
-    val commandsInProtocol = bot.commands.getOrPut(protocol) { mutableMapOf() }
+class RegistrySnapshot(
+    val version: Long,
+    val commands: Map<Protocol, Map<String, Command>>,
+    val aliases: Map<CommandScope, Map<String, Alias>>,
+    val catalog: CommandCatalog
+)
 
-    if (command.name.lowercase() in commandsInProtocol)
-        return false
+/**
+ * The commands and aliases in a [RegistrySnapshot], sorted by name for listing. Each change only re-sorts the protocol
+ * or scope it touched, and help pages are rendered the first time they're asked for, then kept until the next change.
+ */
+class CommandCatalog private constructor(
+    private val commandsByProtocol: Map<Protocol, List<Command>>,
+    private val aliasNamesByScope: Map<CommandScope, List<String>>
+) {
+    private val commandsInScope = ConcurrentHashMap<Protocol, List<Command>>()
+    private val helpPages = ConcurrentHashMap<Protocol, List<String>>()
 
-    commandsInProtocol[command.name.lowercase()] = command
-    return true
+    /** Every command that can be run from [protocol], meaning its own commands and the universal ones, by name. */
+    fun commandsFor(protocol: Protocol): List<Command> = commandsInScope.computeIfAbsent(protocol) {
+        mergeSorted(setOf(UniversalProtocol, protocol).mapNotNull { commandsByProtocol[it] }, commandOrder)
+    }
+
+    /** The names of every command in [protocols], sorted. */
+    fun commandNames(protocols: Collection<Protocol>): List<String> =
+        mergeSorted(protocols.mapNotNull { commandsByProtocol[it] }, commandOrder).map { it.name.lowercase() }
+
+    /** The names of every alias in [scopes], sorted. */
+    fun aliasNames(scopes: Collection<CommandScope>): List<String> =
+        mergeSorted(scopes.mapNotNull { aliasNamesByScope[it] }, naturalOrder())
+
+    /** The help pages for [protocol], each listing [COMMANDS_PER_PAGE] of [commandsFor] with their help text. */
+    fun helpPages(protocol: Protocol): List<String> = helpPages.computeIfAbsent(protocol) {
+        val pages = commandsFor(protocol).chunked(COMMANDS_PER_PAGE)
+        pages.mapIndexed { i, commands ->
+            buildString {
+                append("Help page ${i + 1}/${pages.size}:\n")
+                commands.forEach { append("${it.name} - ${it.helpText}\n") }
+            }
+        }
+    }
+
+    fun withCommand(command: Command): CommandCatalog {
+        val commandsInProtocol = commandsByProtocol[command.protocol].insertSorted(command, commandOrder)
+        return CommandCatalog(commandsByProtocol.with(command.protocol, commandsInProtocol), aliasNamesByScope)
+    }
+
+    fun withAlias(scope: CommandScope, name: String) = CommandCatalog(
+        commandsByProtocol,
+        aliasNamesByScope.with(scope, aliasNamesByScope[scope].insertSorted(name, naturalOrder()))
+    )
+
+    fun withoutAlias(scope: CommandScope, name: String) =
+        CommandCatalog(commandsByProtocol, aliasNamesByScope.with(scope, aliasNamesByScope[scope].orEmpty() - name))
+
+    fun withAliases(aliases: Map<CommandScope, Map<String, Alias>>) =
+        CommandCatalog(commandsByProtocol, aliases.mapValues { (_, aliasesInScope) -> aliasesInScope.keys.sorted() })
+
+    companion object {
+        val EMPTY = CommandCatalog(emptyMap(), emptyMap())
+
+        private val commandOrder = compareBy<Command>({ it.name.lowercase() }, { it.protocol.name })
+
+        private fun <T> List<T>?.insertSorted(element: T, order: Comparator<in T>): List<T> {
+            val list = ArrayList(this.orEmpty())
+            val index = list.binarySearch(element, order)
+            list.add(if (index < 0) -index - 1 else index, element)
+            return list
+        }
+
+        // Usually there's only one list that isn't empty, which is already sorted.
+        private fun <T> mergeSorted(lists: List<List<T>>, order: Comparator<in T>): List<T> {
+            val nonEmpty = lists.filter { it.isNotEmpty() }
+            return if (nonEmpty.size <= 1) nonEmpty.firstOrNull().orEmpty() else nonEmpty.flatten().sortedWith(order)
+        }
+    }
+}
+
+/**
+ * Holds the current [RegistrySnapshot]. Readers should grab [snapshot] once and use it for everything they look up;
+ * writers copy whatever they change and publish a new snapshot, one at a time.
+ */
+object CommandRegistry {
+    @Volatile
+    var snapshot = RegistrySnapshot(0, emptyMap(), emptyMap(), CommandCatalog.EMPTY)
+        private set
+
+    @Synchronized
+    fun addCommand(command: Command): Boolean {
+        val current = snapshot
+        val name = command.name.lowercase()
+        val commandsInProtocol = current.commands[command.protocol] ?: emptyMap()
+        if (name in commandsInProtocol)
+            return false
+        publish(
+            current.commands.with(command.protocol, commandsInProtocol.with(name, command)),
+            current.aliases,
+            current.catalog.withCommand(command)
+        )
+        return true
+    }
+
+    @Synchronized
+    fun addAlias(alias: Alias): Boolean {
+        val current = snapshot
+        val name = alias.name.lowercase()
+        val aliasesInScope = current.aliases[alias.scope] ?: emptyMap()
+        if (name in aliasesInScope)
+            return false
+        publish(
+            current.commands,
+            current.aliases.with(alias.scope, aliasesInScope.with(name, alias)),
+            current.catalog.withAlias(alias.scope, name)
+        )
+        return true
+    }
+
+    @Synchronized
+    fun removeAlias(scope: CommandScope, name: String): Alias? {
+        val current = snapshot
+        val alias = current.aliases[scope]?.get(name) ?: return null
+        publish(
+            current.commands,
+            current.aliases.with(scope, current.aliases.getValue(scope) - name),
+            current.catalog.withoutAlias(scope, name)
+        )
+        return alias
+    }
+
+    /**
+     * Replaces every alias, such as when they've been loaded from the settings file.
+     */
+    @Synchronized
+    fun loadAliases(aliases: Map<CommandScope, Map<String, Alias>>) = publish(
+        snapshot.commands,
+        aliases.mapValues { (_, aliasesInScope) -> LinkedHashMap(aliasesInScope) },
+        snapshot.catalog.withAliases(aliases)
+    )
+
+    @Synchronized
+    fun clear() = publish(emptyMap(), emptyMap(), CommandCatalog.EMPTY)
+
+    // Aliases are persisted with the rest of the settings, so keep settings.aliases pointed at the latest ones.
+    private fun publish(
+        commands: Map<Protocol, Map<String, Command>>,
+        aliases: Map<CommandScope, Map<String, Alias>>,
+        catalog: CommandCatalog
+    ) {
+        snapshot = RegistrySnapshot(snapshot.version + 1, commands, aliases, catalog)
+        settings.aliases = aliases
+    }
 }
 
+private fun <K, V> Map<K, V>.with(key: K, value: V): Map<K, V> = LinkedHashMap(this).also { it[key] = value }
+
+/**
+ * Adds a command to the command registry.
+ * @return true if a command with that name does not already exist in the registry, false otherwise.
+ */
+fun registerCommand(command: Command): Boolean = CommandRegistry.addCommand(command)
+
 /**
  * Adds an alias to the alias registry.
  * @return true if an alias with that name does not already exist in the registry, false otherwise.
  */
 fun registerAlias(alias: Alias): Boolean {
-    val chat = alias.scope
-    val aliases = settings.aliases
-    val aliasesInChat = aliases.getOrPut(chat) { mutableMapOf() }
-
-    if (alias.name.lowercase() in aliasesInChat)
+    if (!CommandRegistry.addAlias(alias))
         return false
-
     alias.protocol.aliasCreated(alias)
-    aliasesInChat[alias.name.lowercase()] = alias
+    return true
+}
+
+/**
+ * Removes the alias named [name] from [scope] in the alias registry.
+ * @return true if the alias existed, false otherwise.
+ */
+fun unregisterAlias(scope: CommandScope, name: String): Boolean {
+    val alias = CommandRegistry.removeAlias(scope, name) ?: return false
+    alias.protocol.aliasRemoved(alias)
     return true
 }
 
@@ -63,18 +218,29 @@ fun runCommand(chat: Chat, message: IncomingMessage, sender: User, images: Array
     )
     forwardToLinkedChats(chat, message.toOutgoing(), sender, images)
     try {
-        parseCommand(chat, text, sender)?.let { (command, args) ->
-            runCommand(chat, sender, command, args)
+        val (command, args) = parseCommand(chat, text, sender) ?: return
+        val queued = CommandExecutor.submit(chat) {
+            try {
+                runCommand(chat, sender, command, args)
+            } catch(e: Exception) {
+                sendCommandError(chat, sender, e)
+            }
         }
+        if (!queued)
+            sendMessage(chat, sender, "Too many commands are waiting to run right now. Try again in a bit.")
     } catch(e: Exception) {
-        sendMessage(
-            chat, sender,
-            "Error while running command! Stack trace:\n${if (settings.debugMode) getStackTraceText(e) else e.message}"
-        )
-        if (!settings.debugMode)
-            defaultLogger.error("Error while running command!", e)
+        sendCommandError(chat, sender, e)
     }
 }
 
+private fun sendCommandError(chat: Chat, sender: User, e: Exception) {
+    sendMessage(
+        chat, sender,
+        "Error while running command! Stack trace:\n${if (settings.debugMode) getStackTraceText(e) else e.message}"
+    )
+    if (!settings.debugMode)
+        defaultLogger.error("Error while running command!", e)
+}
+
 fun runCommand(chat: Chat, sender: User, command: Command, args: List<String>) =
     sendMessage(chat, sender, command(args, chat, sender))
@@ -1,6 +1,7 @@
 package convergence
 
 import com.fasterxml.jackson.annotation.JsonIgnore
+import com.fasterxml.jackson.annotation.JsonProperty
 import com.fasterxml.jackson.core.JsonParser
 import com.fasterxml.jackson.databind.ObjectMapper
 import com.fasterxml.jackson.databind.SerializationFeature
@@ -11,6 +12,10 @@ import java.net.URI
 import java.nio.file.Path
 import java.time.OffsetDateTime
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentSkipListMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CopyOnWriteArraySet
 import java.util.concurrent.Executors
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
@@ -43,22 +48,49 @@ data class CalendarNotificationChannel(
     }
 }
 
+/** A slash command as it was last pushed to a guild, so we can tell whether it needs pushing again. */
+data class PushedSlashCommand(val id: Long, val hash: String)
+
 // destination persists as its key string (DiscordChat is serialized by the Chat value serializer and rebuilt
 // by the DiscordChat value deserializer in convergenceModule); emojis is a plain map Jackson handles natively.
 data class ReactConfig(val destination: DiscordChat, val emojis: MutableMap<String, Int>)
 
 data class Settings(
-    var aliases: MutableMap<CommandScope, MutableMap<String, Alias>> = mutableMapOf(),
-    var commandDelimiters: MutableMap<CommandScope, String> = mutableMapOf(),
-    var linkedChats: MutableMap<Chat, MutableSet<Chat>> = mutableMapOf(),
+    var aliases: Map<CommandScope, Map<String, Alias>> = mapOf(),
+    var commandDelimiters: MutableMap<CommandScope, String> = ConcurrentHashMap(),
+    var linkedChats: MutableMap<Chat, MutableSet<Chat>> = ConcurrentHashMap(),
+    // Only read, to move scheduled commands from settings files written before they were kept in the CommandJournal.
+    @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
     var serializedCommands: MutableMap<Int, ScheduledCommand> = mutableMapOf(),
     var syncedCalendars: MutableList<SyncedCalendar> = mutableListOf(),
     var notificationChannels: MutableList<CalendarNotificationChannel> = mutableListOf(),
     var timers: MutableMap<String, OffsetDateTime> = mutableMapOf(),
-    var imageUploadChannels: MutableMap<Chat, URI> = mutableMapOf(),
-    var reactServers: MutableMap<Server, MutableList<ReactConfig>> = TreeMap(),
-    var mentionChats: MutableMap<Chat, MutableMap<User, MutableMap<User, Int>>> = mutableMapOf(),
-    var debugMode: Boolean = false
+    var imageUploadChannels: MutableMap<Chat, URI> = ConcurrentHashMap(),
+    var reactServers: MutableMap<Server, MutableList<ReactConfig>> = ConcurrentSkipListMap(),
+    var mentionChats: MutableMap<Chat, MutableMap<User, MutableMap<User, Int>>> = ConcurrentHashMap(),
+    var debugMode: Boolean = false,
+    var commandThreads: Int = 8,
+    var commandQueueCapacity: Int = 1000,
+    var timedCommandThreads: Int = 32,
+    var statsLogIntervalMinutes: Int = 60,
+    var bridgeThreads: Int = 4,
+    var bridgeQueueCapacity: Int = 1000,
+    var bridgeCoalesceWindowMs: Long = 0,
+    var bridgeEchoCacheSize: Int = 10000,
+    var bridgeEchoTtlSeconds: Long = 300,
+    var attachmentCacheMaxBytes: Long = 256L * 1024 * 1024,
+    var attachmentMemoryLimitBytes: Int = 1024 * 1024,
+    var eventThreads: Int = 1,
+    var eventQueueCapacity: Int = 1000,
+    var eventOverflowPolicy: OverflowPolicy = OverflowPolicy.BLOCK,
+    var uploadThreads: Int = 2,
+    var uploadQueueCapacity: Int = 500,
+    var uploadRetryDelayMs: Long = 1000,
+    var uploadedImageHashLimit: Int = 10000,
+    var outboundQueueCapacity: Int = 200,
+    var schedulerThreads: Int = 4,
+    var schedulerQueueCapacity: Int = 1000,
+    var slashCommands: MutableMap<Long, MutableMap<String, PushedSlashCommand>> = mutableMapOf()
 )
 
 val settings = Settings()
@@ -88,16 +120,35 @@ private fun writeSettingsToFile() {
     settingsLogger.info("Settings written.")
 }
 
+// Commands and event listeners run on their own threads, so the maps they change have to be safe to change from several
+// threads at once. Jackson reads them in as plain maps, so they're swapped for concurrent ones once they've been read.
+private fun Settings.makeConcurrent() {
+    commandDelimiters = ConcurrentHashMap(commandDelimiters)
+    linkedChats = linkedChats.mapValuesTo(ConcurrentHashMap()) { CopyOnWriteArraySet(it.value) }
+    imageUploadChannels = ConcurrentHashMap(imageUploadChannels)
+    reactServers = reactServers.mapValuesTo(ConcurrentSkipListMap()) { (_, configs) ->
+        configs.mapTo(CopyOnWriteArrayList()) { it.copy(emojis = ConcurrentHashMap(it.emojis)) }
+    }
+    mentionChats = mentionChats.mapValuesTo(ConcurrentHashMap()) { (_, users) ->
+        users.mapValuesTo(ConcurrentHashMap()) { ConcurrentHashMap(it.value) }
+    }
+}
+
 fun readSettings() {
     try {
         objectMapper.readerForUpdating(settings).readValue<Settings>(settingsPath.toFile())
-        writeSettingsToFile()
+        settings.makeConcurrent()
+        CommandRegistry.loadAliases(settings.aliases)
+        ParsedCommandCache.clear()
     } catch(_: java.io.FileNotFoundException) {
-        writeSettingsToFile()
+        settingsLogger.info("There's no settings file at $settingsPath yet, so one will be made.")
     } catch(e: Exception) {
         settingsLogger.error("Error occurred while reading settings from $settingsPath.\n\tError: ", e)
         throw IllegalStateException("Failed to read settings from $settingsPath", e)
     }
+    // Scheduled commands aren't written back out, so any from an older file are moved into the journal first.
+    Scheduler.loadFromFile()
+    writeSettingsToFile()
 }
 
 lateinit var convergencePath: Path
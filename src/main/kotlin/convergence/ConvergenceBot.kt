@@ -2,6 +2,7 @@ package convergence
 
 import convergence.console.ConsoleProtocol
 import convergence.discord.DiscordProtocol
+import convergence.discord.calendar.CalendarProcessor
 import net.sourceforge.argparse4j.ArgumentParsers
 import net.sourceforge.argparse4j.inf.ArgumentParserException
 import java.nio.file.Paths
@@ -36,17 +37,19 @@ object ConvergenceBot {
 
         defaultLogger.info("Registering default commands...")
         registerDefaultCommands()
+        warmUpCommandParser()
 
         updateChatMap()
 
-        defaultLogger.info("Loading settings...")
+        defaultLogger.info("Loading settings and scheduled commands...")
         readSettings()
 
         loadProtocolConfig()
 
         defaultLogger.info("Starting command scheduler...")
-        Scheduler.loadFromFile()
         Scheduler.start()
+        CalendarProcessor.scheduleUpdates()
+        MetricsReport.scheduleLogExport()
     }
 }
 
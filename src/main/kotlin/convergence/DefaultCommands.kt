@@ -3,7 +3,7 @@ package convergence
 import convergence.Scheduler.getCommands
 import org.natty.Parser
 import java.time.OffsetDateTime
-import kotlin.math.ceil
+import java.util.concurrent.CopyOnWriteArraySet
 import kotlin.reflect.jvm.jvmName
 import kotlin.system.exitProcess
 
@@ -38,21 +38,13 @@ fun getUserFromName(chat: Chat, name: String): User? {
 
 
 const val COMMANDS_PER_PAGE = 10
+const val STATS_SHOWN = 10
 fun help(args: List<String>, chat: Chat): String {
-    val sortedCommands = bot.commands.values.flatMap { it.values }.sortedBy { it.name }
-    val numPages = ceil(sortedCommands.size.toDouble() / COMMANDS_PER_PAGE).toInt()
-    val pageOrCommand = if (args.isEmpty()) 1 else args[0].toIntOrNull()?.coerceIn(1..numPages) ?: args[0]
+    val pages = CommandRegistry.snapshot.catalog.helpPages(chat.protocol)
+    val pageOrCommand =
+        if (args.isEmpty()) 1 else args[0].toIntOrNull()?.coerceIn(1, pages.size.coerceAtLeast(1)) ?: args[0]
     return when(pageOrCommand) {
-        is Int -> buildString {
-            append("Help page $pageOrCommand/$numPages:\n")
-            for (i in 0 until COMMANDS_PER_PAGE) {
-                val index = i + (pageOrCommand - 1) * COMMANDS_PER_PAGE
-                if (index >= sortedCommands.size)
-                    break
-                val currentCommand = sortedCommands[index]
-                append("${currentCommand.name} - ${currentCommand.helpText}\n")
-            }
-        }
+        is Int -> pages.getOrElse(pageOrCommand - 1) { "No commands found." }
 
         is String -> {
             val currentCommand = try {
@@ -109,8 +101,7 @@ fun removeServerAlias(args: List<String>, chat: Chat): String {
         return "Only one argument should be passed."
     }
     val server = chat.server
-    if (server in settings.aliases && settings.aliases[server] is MutableMap && args[0] in settings.aliases[server]!!) {
-        settings.aliases[server]!!.remove(args[0])
+    if (unregisterAlias(server, args[0])) {
         updateSettings()
         return "Server alias \"${args[0]}\" removed."
     }
@@ -121,8 +112,7 @@ fun removeAlias(args: List<String>, chat: Chat): String {
     if (args.size != 1) {
         return "Only one argument should be passed."
     }
-    if (chat in settings.aliases && settings.aliases[chat] is MutableMap && args[0] in settings.aliases[chat]!!) {
-        settings.aliases[chat]!!.remove(args[0])
+    if (unregisterAlias(chat, args[0])) {
         updateSettings()
         return "Alias \"${args[0]}\" removed."
     }
@@ -182,20 +172,45 @@ fun targetNick(args: List<String>, chat: Chat): String {
 }
 
 fun commands(chat: Chat): String {
-    val commandList = mutableListOf<String>()
-    bot.commands[chat.protocol]?.forEach { commandList.add(it.key) }
-    bot.commands[UniversalProtocol]?.forEach { commandList.add(it.key) }
-    settings.linkedChats[chat]?.forEach { linked -> bot.commands[linked.protocol]?.forEach { commandList.add(it.key) } }
-    commandList.sort()
+    val catalog = CommandRegistry.snapshot.catalog
+    val linkedProtocols = settings.linkedChats[chat]?.map { it.protocol }.orEmpty()
+    val commandList = if (linkedProtocols.isEmpty())
+        catalog.commandsFor(chat.protocol).map { it.name.lowercase() }
+    else
+        catalog.commandNames(setOf(chat.protocol, UniversalProtocol) + linkedProtocols)
     return if (commandList.isNotEmpty()) commandList.joinToString(", ") else "No commands found."
 }
 
+fun stats(args: List<String>): String {
+    if (args.isNotEmpty()) {
+        val name = args.joinToString(" ")
+        val matching = CommandMetrics.all().filter { it.name.equals(name, ignoreCase = true) }
+        return if (matching.isEmpty()) "\"$name\" hasn't been run yet." else matching.joinToString("\n") {
+            "$it, p90 ${formatLatency(it.latency.percentile(90.0))}, p99.9 ${
+                formatLatency(it.latency.percentile(99.9))
+            }, mean ${formatLatency(it.latency.mean)}"
+        }
+    }
+    val all = CommandMetrics.all()
+    return buildString {
+        append("Command queue: ${CommandExecutor.queueDepth} waiting (max ${CommandExecutor.maxQueueDepth}), ")
+        append("${CommandExecutor.completed} completed, ${CommandExecutor.rejected} rejected.\n")
+        append("Outbound messages: ${OutboundQueue.queueDepth} waiting, ")
+        append("${SendPriority.entries.sumOf { OutboundQueue.dropped(it) }} dropped, ${OutboundQueue.failures} failed.\n")
+        if (all.isEmpty())
+            append("No commands have been run yet.")
+        else {
+            append("Commands by total time spent:\n")
+            all.take(STATS_SHOWN).joinTo(this, "\n")
+            if (all.size > STATS_SHOWN)
+                append("\n...and ${all.size - STATS_SHOWN} more.")
+        }
+    }
+}
+
 fun aliases(chat: Chat): String {
-    val aliasList = mutableListOf<String>()
-    settings.aliases[chat]?.forEach { aliasList.add(it.key) }
-    settings.aliases[UniversalChat]?.forEach { aliasList.add(it.key) }
-    settings.linkedChats[chat]?.forEach { linked -> settings.aliases[linked]?.forEach { aliasList.add(it.key) } }
-    aliasList.sort()
+    val scopes = listOf(chat, UniversalChat) + settings.linkedChats[chat].orEmpty()
+    val aliasList = CommandRegistry.snapshot.catalog.aliasNames(scopes.distinct())
     return if (aliasList.isNotEmpty()) "Aliases: ${aliasList.joinToString(", ")}" else "No aliases found."
 }
 
@@ -287,7 +302,6 @@ private fun addEventToBuilder(
 fun unschedule(args: List<String>): String {
     val index = args[0].toIntOrNull() ?: return "${args[0]} is not an event ID!"
 
-    updateSettings()
     return if (Scheduler.unschedule(index))
         "Unscheduled event with index $index."
     else
@@ -299,7 +313,7 @@ fun link(args: List<String>, chat: Chat): String {
 
     val chatToLink = bot.chatMap[index]
     return if (chatToLink != null) {
-        settings.linkedChats.getOrPut(chat) { mutableSetOf() }.add(chatToLink)
+        settings.linkedChats.compute(chat) { _, chats -> (chats ?: CopyOnWriteArraySet()).apply { add(chatToLink) } }
         updateSettings()
         "${chatToLink.name} linked to ${chat.name}."
     } else
@@ -310,24 +324,23 @@ fun unlink(args: List<String>, chat: Chat): String {
     val index = args[0].toIntOrNull() ?: return "${args[0]} is not a chat ID!"
     val toUnlink = bot.chatMap[index] ?: return "No chat with ID $index found."
 
-    return when {
-        chat !in settings.linkedChats -> "There are no chats linked to this one!"
-        settings.linkedChats[chat]!!.remove(toUnlink) -> {
-            if (settings.linkedChats[chat]!!.isEmpty())
-                settings.linkedChats.remove(chat)
-            updateSettings()
-            "Removed ${toUnlink.name} from this chat's links."
-        }
-
-        else -> "That chat isn't linked to this one!"
+    if (chat !in settings.linkedChats)
+        return "There are no chats linked to this one!"
+    // Done in one go, so a chat linked at the same time doesn't end up in a set that's just been removed.
+    var removed = false
+    settings.linkedChats.computeIfPresent(chat) { _, chats ->
+        removed = chats.remove(toUnlink)
+        chats.takeIf { it.isNotEmpty() }
     }
+    if (!removed)
+        return "That chat isn't linked to this one!"
+    updateSettings()
+    return "Removed ${toUnlink.name} from this chat's links."
 }
 
 fun links(chat: Chat): String {
-    return if (chat in settings.linkedChats)
-        "Linked chats: ${settings.linkedChats[chat]!!.joinToString(", ") { c: Chat -> "$c (${bot.reverseChatMap[c]})" }}"
-    else
-        "No chats are linked to this one."
+    val linkedChats = settings.linkedChats[chat] ?: return "No chats are linked to this one."
+    return "Linked chats: ${linkedChats.joinToString(", ") { c: Chat -> "$c (${bot.reverseChatMap[c]})" }}"
 }
 
 /**
@@ -474,6 +487,16 @@ fun registerDefaultCommands() {
             "chats (Takes no arguments)"
         )
     )
+    registerCommand(
+        Command.of(
+            UniversalProtocol,
+            "stats",
+            listOf(ArgumentSpec("Command", ArgumentType.STRING, optional = true)),
+            ::stats,
+            "Shows how long commands have been taking to run, and how often they fail.",
+            "stats [command]"
+        )
+    )
     registerCommand(
         Command.of(
             UniversalProtocol, "commands",
@@ -26,6 +26,17 @@ fun <K, V, K2, V2> Map<K, V>.mapEntries(fct: (Map.Entry<K, V>) -> Pair<K2, V2>):
 fun <K, V> Map<K, V>.mutable(): MutableMap<K, V> = this as? MutableMap<K, V> ?: toMutableMap()
 fun <T> List<T>.mutable(): MutableList<T> = this as? MutableList<T> ?: toMutableList()
 
+// A read-only view of two lists back to back, so joining them doesn't have to copy either one.
+class ConcatenatedList<T>(private val first: List<T>, private val second: List<T>): AbstractList<T>() {
+    override val size get() = first.size + second.size
+    override fun get(index: Int) = if (index < first.size) first[index] else second[index - first.size]
+}
+fun <T> List<T>.concatView(other: List<T>): List<T> = when {
+    other.isEmpty() -> this
+    isEmpty() -> other
+    else -> ConcatenatedList(this, other)
+}
+
 fun String.substringBetween(startDelimiter: String, endDelimiter: String): String {
     val startIndex = this.indexOf(startDelimiter)
     val endIndex = this.lastIndexOf(endDelimiter)
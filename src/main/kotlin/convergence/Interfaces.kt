@@ -6,6 +6,7 @@ import java.io.InputStream
 import java.net.URI
 import java.time.OffsetDateTime
 import java.util.*
+import java.util.concurrent.CompletableFuture
 
 sealed interface CommandScope {
     val protocol: Protocol
@@ -14,11 +15,11 @@ sealed interface CommandScope {
 
 abstract class Server(val name: String, override val protocol: Protocol): Comparable<Server>, CommandScope
 
-typealias MessageCallback = (chat: Chat, message: IncomingMessage, sender: User) -> Unit
 abstract class Protocol(val name: String): Comparable<Protocol> {
     abstract fun init()
     abstract fun configLoaded()
     abstract fun aliasCreated(alias: Alias)
+    open fun aliasRemoved(alias: Alias) {}
     override fun equals(other: Any?): Boolean {
         if (this === other) return true
         if (other !is Protocol) return false
@@ -32,12 +33,18 @@ abstract class Protocol(val name: String): Comparable<Protocol> {
     override fun toString(): String = this::class.java.simpleName
     override fun hashCode(): Int = name.hashCode()
 
-    fun receivedMessage(chat: Chat, message: IncomingMessage, sender: User) = bot.messageCallbacks.forEach {
-        it(chat, message, sender)
-    }
+    fun receivedMessage(chat: Chat, message: IncomingMessage, sender: User) =
+        ReceivedMessage.dispatch(chat) { it(chat, message, sender) }
     abstract fun sendMessage(chat: Chat, message: OutgoingMessage): Boolean
     fun sendMessage(chat: Chat, message: String) = sendMessage(chat, SimpleOutgoingMessage(message))
 
+    /**
+     * Sends [message] in [chat], completing with whether it was sent once it's actually gone out. Protocols that send
+     * in the background should override this, so [OutboundQueue] knows when the next message can go.
+     */
+    open fun sendMessageAsync(chat: Chat, message: OutgoingMessage): CompletableFuture<Boolean> =
+        CompletableFuture.completedFuture(sendMessage(chat, message))
+
     abstract fun getChats(): List<Chat>
     abstract fun getBot(chat: Chat): User
 
@@ -112,7 +119,8 @@ interface HasNicknames {
     fun setUserNickname(chat: Chat, user: User, newName: String): String?
     fun setBotNickname(chat: Chat, newName: String): String?
 
-    fun changedNickname(chat: Chat, user: User, oldName: String) = runCallbacks<ChangedNickname>(chat, user, oldName)
+    fun changedNickname(chat: Chat, user: User, oldName: String) =
+        ChangedNickname.dispatch(chat) { it(chat, user, oldName) }
 }
 
 abstract class Image {
@@ -129,14 +137,16 @@ interface HasImages {
     fun receivedImages(chat: Chat, message: String, sender: User, vararg images: Image) =
         receivedImages(chat, SimpleIncomingMessage(message), sender, *images)
 
+    // A vararg parameter is already an Array<Image> at runtime, so this doesn't copy it.
+    @Suppress("UNCHECKED_CAST")
     fun receivedImages(chat: Chat, message: IncomingMessage, sender: User, vararg images: Image) =
-        runCallbacks<ReceivedImages>(chat, message, sender, images)
+        ReceivedImages.dispatch(chat) { it(chat, message, sender, images as Array<Image>) }
 }
 
 interface CanEditOtherMessages {
     fun editMessage(message: MessageHistory, oldMessage: IncomingMessage, sender: User, newMessage: OutgoingMessage)
     fun editedMessage(oldMessage: IncomingMessage, sender: User, newMessage: IncomingMessage) =
-        runCallbacks<EditMessage>(oldMessage, sender, newMessage)
+        EditMessage.dispatch { it(oldMessage.toSimple().text, sender, newMessage.toSimple().text) }
 }
 
 abstract class MessageHistory(var message: IncomingMessage, val timestamp: OffsetDateTime, val sender: User)
@@ -154,15 +164,15 @@ interface CanMentionUsers {
     fun mention(chat: Chat, user: User, message: OutgoingMessage?)
     fun mention(chat: Chat, user: User) = mention(chat, user, null)
     fun mentionedUsers(chat: Chat, message: IncomingMessage, sender: User, users: List<User>) =
-        runCallbacks<MentionedUser>(chat, message, sender, users)
+        MentionedUser.dispatch(chat) { it(chat, message, sender, users) }
     fun getUserFromMentionText(chat: Chat, mention: String): User?
     fun getMentions(message: IncomingMessage): List<User>
 }
 
 interface HasTypingStatus {
     fun setBotTypingStatus(chat: Chat, status: Boolean)
-    fun startedTyping(chat: Chat, user: User) = runCallbacks<StartedTyping>(chat, user)
-    fun stoppedTyping(chat: Chat, user: User) = runCallbacks<StoppedTyping>(chat, user)
+    fun startedTyping(chat: Chat, user: User) = StartedTyping.dispatch(chat) { it(chat, user) }
+    fun stoppedTyping(chat: Chat, user: User) = StoppedTyping.dispatch(chat) { it(chat, user) }
 }
 
 abstract class Sticker(val name: String, val url: String?)
@@ -170,7 +180,7 @@ abstract class Sticker(val name: String, val url: String?)
 interface HasStickers {
     fun sendSticker(chat: Chat, sticker: Sticker)
     fun receivedSticker(chat: Chat, sticker: Sticker, sender: User) =
-        runCallbacks<ReceivedSticker>(chat, sticker, sender)
+        ReceivedSticker.dispatch(chat) { it(chat, sticker, sender) }
 }
 
 interface HasUserStatus { // Like your status on Skype.
@@ -184,14 +194,15 @@ interface HasUserAvailability {
     fun setBotAvailability(chat: Chat, availability: Availability)
     fun getUserAvailability(chat: Chat, user: User): Availability
     fun changedAvailability(chat: Chat, user: User, availability: Availability) =
-        runCallbacks<ChangedAvailability>(chat, user, availability)
+        ChangedAvailability.dispatch(chat) { it(chat, user, availability) }
 }
 
 
 interface HasReadStatus {
     fun getReadStatus(chat: Chat, message: MessageHistory): Set<User>
     fun setRead(chat: Chat, message: MessageHistory, user: User)
-    fun readByUser(chat: Chat, message: MessageHistory, user: User) = runCallbacks<ReadByUser>(chat, message, user)
+    fun readByUser(chat: Chat, message: MessageHistory, user: User) =
+        ReadByUser.dispatch(chat) { it(chat, message, user) }
 }
 
 // If possible, the name would be an enum instead, but I want the ability for protocols to add extra formats
@@ -211,6 +222,10 @@ open class Format(name: String) {
     }
 }
 
+interface HasMessageLengthLimit {
+    val maxMessageLength: Int
+}
+
 interface CanFormatMessages {
     val supportedFormats: Set<Format>
 
@@ -256,7 +271,7 @@ interface HasReactions {
         emoji: IEmoji,
         oldAmount: Int,
         newAmount: Int
-    ) = runCallbacks<ReactionChanged>(sender, chat, message, emoji, oldAmount, newAmount)
+    ) = ReactionChanged.dispatch(chat, emoji.asString()) { it(sender, chat, message, emoji, oldAmount, newAmount) }
 }
 
 interface HasServer<T: Server> {
@@ -2,7 +2,46 @@ package convergence
 
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
+import java.time.OffsetDateTime
+import java.util.concurrent.CopyOnWriteArrayList
 
 val defaultLogger: Logger = LoggerFactory.getLogger("convergence")
 val settingsLogger: Logger = LoggerFactory.getLogger("convergence.settings")
 val messageLogger: Logger = LoggerFactory.getLogger("convergence.messages")
+val metricsLogger: Logger = LoggerFactory.getLogger("convergence.metrics")
+
+/**
+ * Logs how the bot is doing every [Settings.statsLogIntervalMinutes] minutes. Each part of the bot adds its own lines
+ * with [register] once it's in use, so this doesn't need to know about any of them.
+ */
+object MetricsReport {
+    private val sections = CopyOnWriteArrayList<() -> List<String>>()
+
+    /** Adds [section], which returns the lines to log (if any), to every snapshot from now on. */
+    fun register(section: () -> List<String>) {
+        sections.add(section)
+    }
+
+    /** Every registered section's lines, in the order they were registered. */
+    fun snapshot(): List<String> = sections.flatMap { section ->
+        try {
+            section()
+        } catch(e: Exception) {
+            metricsLogger.error("Failed to get part of the metrics snapshot!", e)
+            listOf()
+        }
+    }
+
+    fun logSnapshot() = snapshot().forEach(metricsLogger::info)
+
+    /** Logs a snapshot every [Settings.statsLogIntervalMinutes] minutes, unless that's 0 or less. */
+    fun scheduleLogExport() {
+        if (settings.statsLogIntervalMinutes <= 0)
+            return
+        val time = OffsetDateTime.now().plusMinutes(settings.statsLogIntervalMinutes.toLong())
+        Scheduler.schedule(ScheduledTask(time) {
+            logSnapshot()
+            scheduleLogExport()
+        })
+    }
+}
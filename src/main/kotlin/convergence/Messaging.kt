@@ -1,5 +1,10 @@
 package convergence
 
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  * Sends [message] in the chat [sender] is in, forwarding the message to any linked chats.
@@ -14,18 +19,25 @@ fun sendMessage(chat: Chat, sender: User, message: String?) =
     message?.let { sendMessage(chat, sender, SimpleOutgoingMessage(message)) }
 
 /**
- * Sends [message] in [chat], not forwarding it to linked chats.
+ * Sends [message] in [chat], not forwarding it to linked chats. If [chat] has a backlog, messages with a more urgent
+ * [priority] go first.
+ * @return A future that completes with whether the message was sent.
  */
-fun sendMessage(chat: Chat, message: OutgoingMessage?) {
+fun sendMessage(
+    chat: Chat,
+    message: OutgoingMessage?,
+    priority: SendPriority = SendPriority.COMMAND_REPLY
+): CompletableFuture<Boolean> {
     if (message == null)
-        return
-    if (settings.debugMode && message is SimpleOutgoingMessage)
-        chat.protocol.sendMessage(chat, "[Test Mode]: ${message.text}")
+        return CompletableFuture.completedFuture(false)
+    return if (settings.debugMode && message is SimpleOutgoingMessage)
+        OutboundQueue.send(chat, SimpleOutgoingMessage("[Test Mode]: ${message.text}"), priority)
     else
-        chat.protocol.sendMessage(chat, message)
+        OutboundQueue.send(chat, message, priority)
 }
 
-fun sendMessage(chat: Chat, message: String?) = message?.let { sendMessage(chat, SimpleOutgoingMessage(message)) }
+fun sendMessage(chat: Chat, message: String?, priority: SendPriority = SendPriority.COMMAND_REPLY) =
+    sendMessage(chat, message?.let { SimpleOutgoingMessage(it) }, priority)
 
 /**
  * Gets the nickname (if applicable) or name of a user.
@@ -39,18 +51,82 @@ fun getUserName(chat: Chat, sender: User): String {
 }
 
 
-val pattern: Regex by lazy { Regex(bot.aliasVars.keys.sortedBy { -it.length }.joinToString("|")) }
+/**
+ * The keys of [BotState.aliasVars], longest first so the longest one wins (%sendername over %sender), and the
+ * characters they start with, so text with none of those characters can be passed through without a closer look.
+ */
+private class AliasVarMatcher(val keys: Set<String>) {
+    private val longestFirst = keys.filter { it.isNotEmpty() }.sortedByDescending { it.length }
+    private val startChars = longestFirst.map { it[0] }.distinct().toCharArray()
+
+    fun mightMatch(text: String) = startChars.any { text.indexOf(it) != -1 }
+
+    fun matchAt(text: String, index: Int) =
+        if (text[index] in startChars) longestFirst.firstOrNull { text.startsWith(it, index) } else null
+}
+
+@Volatile
+private var aliasVarMatcher = AliasVarMatcher(emptySet())
+
+// Rebuilt whenever the alias vars' keys change, so vars added after startup still get replaced.
+private fun currentAliasVarMatcher(): AliasVarMatcher {
+    val matcher = aliasVarMatcher
+    if (matcher.keys == bot.aliasVars.keys)
+        return matcher
+    return AliasVarMatcher(bot.aliasVars.keys.toSet()).also { aliasVarMatcher = it }
+}
+
+private sealed interface TemplateSegment
+private class LiteralSegment(val text: String): TemplateSegment
+private class AliasVarSegment(val key: String): TemplateSegment
+
+/**
+ * Splits [text] into literal text and alias vars.
+ */
+private fun compileAliasVarTemplate(text: String, matcher: AliasVarMatcher): List<TemplateSegment> {
+    val segments = mutableListOf<TemplateSegment>()
+    var literalStart = 0
+    var i = 0
+    while (i < text.length) {
+        val key = matcher.matchAt(text, i)
+        if (key == null) {
+            i++
+            continue
+        }
+        if (literalStart < i)
+            segments.add(LiteralSegment(text.substring(literalStart, i)))
+        segments.add(AliasVarSegment(key))
+        i += key.length
+        literalStart = i
+    }
+    if (literalStart < text.length)
+        segments.add(LiteralSegment(text.substring(literalStart)))
+    return segments
+}
+
 /**
  * Replaces instances of the keys in [aliasVars] preceded by a percent sign with the result of the functions therein,
  * such as %sender with the name of the user who sent the message.
+ * Each var is only looked up once per message, since some (like nicknames on Discord) can need a network request.
  */
 fun replaceAliasVars(chat: Chat, msg: OutgoingMessage?, sender: User): OutgoingMessage? {
-    return if (msg is SimpleOutgoingMessage)
-        SimpleOutgoingMessage(pattern.replace(msg.text) { res ->
-            bot.aliasVars[res.value]!!(chat, sender) ?: res.value
-        })
-    else
-        msg
+    if (msg !is SimpleOutgoingMessage)
+        return msg
+    val matcher = currentAliasVarMatcher()
+    if (!matcher.mightMatch(msg.text))
+        return msg
+    val segments = compileAliasVarTemplate(msg.text, matcher)
+    if (segments.none { it is AliasVarSegment })
+        return msg
+    val values = HashMap<String, String>()
+    return SimpleOutgoingMessage(buildString(msg.text.length) {
+        for (segment in segments) when(segment) {
+            is LiteralSegment -> append(segment.text)
+            is AliasVarSegment -> append(values.getOrPut(segment.key) {
+                bot.aliasVars[segment.key]?.invoke(chat, sender) ?: segment.key
+            })
+        }
+    })
 }
 
 fun forwardToLinkedChats(
@@ -62,25 +138,295 @@ fun forwardToLinkedChats(
 ) {
     if (message == null)
         return
-    val protocol = chat.protocol
-    var boldOpen = ""
-    var boldClose = ""
-    // Try to get the delimiters for bold, if possible.
-    if (protocol is CanFormatMessages && Format.bold in protocol.supportedFormats) {
-        val delimiters = protocol.getDelimiters(Format.bold)
-        boldOpen = delimiters?.first ?: boldOpen
-        boldClose = delimiters?.second ?: boldClose
-    }
-
     // Send the messages out to the linked chats if there are any. Don't error if there aren't any.
+    val linkedChats = settings.linkedChats[chat]?.toList()?.takeIf { it.isNotEmpty() } ?: return
     val bot = chat.protocol.getBot(chat)
-    if (isCommand || sender != bot)
-        if (chat in settings.linkedChats)
-            for (linkedChat in settings.linkedChats[chat]!!) {
-                val msg = "$boldOpen${getUserName(chat, if (isCommand) bot else sender)}:$boldClose $message"
-                if (linkedChat.protocol is HasImages && images.isNotEmpty())
-                    (linkedChat.protocol as HasImages).sendImages(linkedChat, msg, sender, *images)
-                else
-                    sendMessage(linkedChat, msg)
+    // Command replies are ours, so they can't be echoes.
+    if (isCommand || sender != bot && !Bridge.isEcho(chat, linkedChats, message))
+        Bridge.forward(chat, linkedChats, getUserName(chat, if (isCommand) bot else sender), message, sender, images)
+}
+
+/**
+ * Sends bridged messages out to linked chats through the [OutboundQueue], which gives each destination chat its own
+ * queue, so a slow or rate limited chat only holds up messages going to that chat, and each chat still gets its
+ * messages in order.
+ *
+ * If [Settings.bridgeCoalesceWindowMs] is set (it's off by default), text bridged to the same chat within that long of
+ * the first message is sent as one message, a line per original message, split up wherever it would go over the
+ * protocol's [HasMessageLengthLimit]. A busy channel then costs a few sends a second instead of one per message.
+ *
+ * Everything bridged is remembered for [Settings.bridgeEchoTtlSeconds] along with the chat it came from, so if a copy
+ * comes back in (say, through another bridge bot relaying it) to the chat it came from or one linked to it, it's
+ * recognized as an echo and not forwarded again. That way, links can go both ways or form cycles without messages
+ * bouncing around them forever.
+ */
+object Bridge {
+    private class Batch {
+        val lines = ArrayList<String>()
+        val starts = ArrayList<Long>()
+    }
+
+    // A bridged copy is the sender's name followed by the content, so the chat it came from and a hash of the copy
+    // identify the origin, sender, and content. Copies are recognized by their text, since that's all that survives
+    // being relayed by someone else.
+    /**
+     * What's been bridged from one chat recently, by fingerprint, mapped to when it expires. Every entry lives just as
+     * long, so insertion order is also expiry order, and the eldest are the first to go when it's over capacity. Each
+     * chat has its own lock, so checking a message for echoes only waits on sends from the chats it could echo.
+     */
+    private class RecentlySent {
+        private val expiries = object: LinkedHashMap<Long, Long>() {
+            override fun removeEldestEntry(eldest: Map.Entry<Long, Long>) = size > settings.bridgeEchoCacheSize
+        }
+        // How many lines the longest message in here has, so echo checks know how far they need to look.
+        var maxLines = 0
+            @Synchronized get
+            private set
+
+        @Synchronized
+        fun add(fingerprint: Long, lines: Int, now: Long) {
+            expire(now)
+            // Take it out first, so it moves to the back of the line with the new expiry.
+            expiries.remove(fingerprint)
+            expiries[fingerprint] = now + TimeUnit.SECONDS.toNanos(settings.bridgeEchoTtlSeconds)
+            maxLines = maxOf(maxLines, lines)
+        }
+
+        @Synchronized
+        operator fun contains(fingerprint: Long): Boolean {
+            expire(System.nanoTime())
+            return fingerprint in expiries
+        }
+
+        private fun expire(now: Long) {
+            val iterator = expiries.values.iterator()
+            while (iterator.hasNext() && iterator.next() - now <= 0)
+                iterator.remove()
+            if (expiries.isEmpty())
+                maxLines = 0
+        }
+    }
+
+    // Only for images, since protocols send those themselves and can block while they do. Text goes straight to the
+    // OutboundQueue, which already keeps each chat's messages in order without tying up a thread.
+    private val executor = ChatOrderedExecutor("bridge", { settings.bridgeThreads }, { settings.bridgeQueueCapacity })
+    // For each chat, the images being sent to it and anything bridged after them, so nothing overtakes an image. It's
+    // only waited on until it's done.
+    private val waiting = ConcurrentHashMap<Chat, CompletableFuture<*>>()
+    private val coalescer = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "bridge-coalescer").apply { isDaemon = true }
+    }
+    // Batches are only touched inside compute calls, so anything sent to a chat is queued in the order it arrived.
+    private val batches = ConcurrentHashMap<Chat, Batch>()
+    private val latencies = ConcurrentHashMap<Chat, LatencyHistogram>()
+    private val recentlySent = ConcurrentHashMap<Chat, RecentlySent>()
+    private val echoCount = AtomicLong()
+
+    /** How long messages have taken to go out to each linked chat, from being forwarded to being sent. */
+    fun latencies(): Map<Chat, LatencyHistogram> = latencies.toMap()
+
+    /** How many messages have been recognized as echoes of bridged messages and not forwarded. */
+    val echoesDropped get() = echoCount.get()
+
+    init {
+        MetricsReport.register {
+            val perChat = latencies().map { (chat, latency) ->
+                "Bridged to $chat: ${latency.count} messages, p50 ${formatLatency(latency.percentile(50.0))}, " +
+                        "p99 ${formatLatency(latency.percentile(99.0))}, max ${formatLatency(latency.max)}"
             }
+            listOf("Bridge: $echoesDropped echoes of bridged messages not forwarded.") + perChat
+        }
+    }
+
+    fun clear() {
+        waiting.clear()
+        latencies.clear()
+        echoCount.set(0)
+        recentlySent.clear()
+    }
+
+    /**
+     * Checks whether [message] arriving in [chat] is a copy of something recently bridged from [chat] or one of its
+     * [linkedChats], either by itself or as a run of coalesced lines, in which case it shouldn't be forwarded again.
+     */
+    fun isEcho(chat: Chat, linkedChats: Collection<Chat>, message: OutgoingMessage): Boolean {
+        val lines = message.toSimple().text.trim().lines()
+        if (lines.all { it.isBlank() })
+            return false
+        val origins = (linkedChats + chat).mapNotNull { recentlySent[it] }
+        // Nothing bridged has more lines than this, so there's no point looking at longer runs of lines.
+        val maxLines = origins.maxOfOrNull { it.maxLines } ?: 0
+        if (maxLines == 0)
+            return false
+        val lineHashes = lines.map { hashText(it) }
+        // Coalescing may have put several bridged messages in one, so match the longest bridged message at the start
+        // of the text, then keep going from the end of it.
+        var i = 0
+        while (i < lines.size) {
+            var fingerprint = emptyFingerprint
+            var matchedTo = -1
+            for (end in i until minOf(lines.size, i + maxLines)) {
+                fingerprint = addLine(fingerprint, lineHashes[end])
+                if (origins.any { fingerprint in it })
+                    matchedTo = end + 1
+            }
+            if (matchedTo < 0)
+                return false
+            i = matchedTo
+        }
+        echoCount.incrementAndGet()
+        defaultLogger.debug("Not forwarding a message in $chat, since it's a copy of something bridged.")
+        return true
+    }
+
+    // Each line is hashed once here, so echo checks only have to hash the lines that come in.
+    private fun remember(origin: Chat, text: String) {
+        val lines = text.trim().lines()
+        val fingerprint = lines.fold(emptyFingerprint) { fingerprint, line -> addLine(fingerprint, hashText(line)) }
+        recentlySent.computeIfAbsent(origin) { RecentlySent() }.add(fingerprint, lines.size, System.nanoTime())
+    }
+
+    // A message's fingerprint is built up from the hashes of its lines, so it can be worked out a line at a time.
+    private const val emptyFingerprint = -0x340d631b7bdddcdbL
+    private fun addLine(fingerprint: Long, lineHash: Long) = (fingerprint xor lineHash) * 0x100000001b3L
+
+    // 64-bit FNV-1a, so unrelated messages practically never collide, even with a full cache.
+    private fun hashText(text: String): Long {
+        var hash = -0x340d631b7bdddcdbL
+        for (c in text) {
+            hash = (hash xor c.code.toLong()) * 0x100000001b3L
+        }
+        return hash
+    }
+
+    /**
+     * Queues [message] from [senderName] in [origin] to go out to each of [linkedChats]. The text is only rendered once
+     * per protocol, since that's what decides how it's formatted.
+     */
+    fun forward(
+        origin: Chat,
+        linkedChats: List<Chat>,
+        senderName: String,
+        message: OutgoingMessage,
+        sender: User,
+        images: Array<Image> = emptyArray()
+    ) {
+        val start = System.nanoTime()
+        val text = message.toSimple().text
+        val rendered = HashMap<Protocol, String>()
+        for (linkedChat in linkedChats) {
+            val protocol = linkedChat.protocol
+            val msg = rendered.getOrPut(protocol) { render(protocol, senderName, text).also { remember(origin, it) } }
+            val window = settings.bridgeCoalesceWindowMs
+            if (protocol is HasImages && images.isNotEmpty()) {
+                batches.compute(linkedChat) { _, batch ->
+                    batch?.let { sendBatch(linkedChat, it) }
+                    sendImages(linkedChat, start) { protocol.sendImages(linkedChat, msg, sender, *images) }
+                    null
+                }
+            } else if (window <= 0)
+                sendText(linkedChat, listOf(start)) { sendMessage(linkedChat, msg, SendPriority.BRIDGE) }
+            else {
+                batches.compute(linkedChat) { _, batch ->
+                    (batch ?: Batch().also { newBatch ->
+                        coalescer.schedule({ flush(linkedChat, newBatch) }, window, TimeUnit.MILLISECONDS)
+                    }).apply {
+                        lines.add(msg)
+                        starts.add(start)
+                    }
+                }
+            }
+        }
+    }
+
+    // Only sends the batch this timer was started for. If that one was already sent (say, because an image came
+    // through), a newer batch may have taken its place, and that one has its own timer.
+    private fun flush(chat: Chat, batch: Batch) {
+        batches.computeIfPresent(chat) { _, current ->
+            if (current !== batch)
+                return@computeIfPresent current
+            sendBatch(chat, current)
+            null
+        }
+    }
+
+    private fun sendBatch(chat: Chat, batch: Batch) = sendText(chat, batch.starts) {
+        val messages = joinLines(batch.lines, (chat.protocol as? HasMessageLengthLimit)?.maxMessageLength)
+        CompletableFuture.allOf(*messages.map { sendMessage(chat, it, SendPriority.BRIDGE) }.toTypedArray())
+    }
+
+    private fun sendText(chat: Chat, starts: List<Long>, send: () -> CompletableFuture<*>) {
+        var sent: CompletableFuture<*>? = null
+        waiting.compute(chat) { _, previous ->
+            if (previous == null || previous.isDone) {
+                sent = send()
+                null
+            } else
+                previous.handle { _, _ -> }.thenCompose { send() }.also { sent = it }
+        }
+        recordLatency(chat, starts, sent!!)
+    }
+
+    private fun sendImages(chat: Chat, start: Long, send: () -> Unit) {
+        waiting.compute(chat) { _, previous ->
+            val sent = CompletableFuture<Unit>()
+            (previous ?: CompletableFuture.completedFuture(null)).whenComplete { _, _ ->
+                val queued = executor.submit(chat) {
+                    try {
+                        send()
+                        sent.complete(Unit)
+                    } catch(e: Exception) {
+                        sent.completeExceptionally(e)
+                    }
+                }
+                if (!queued) {
+                    defaultLogger.warn("Too many images are waiting to be bridged, so images to $chat were dropped.")
+                    sent.complete(Unit)
+                }
+            }
+            recordLatency(chat, listOf(start), sent)
+            sent
+        }
+    }
+
+    // Latency is recorded once the messages have actually gone out, not when they're handed to the OutboundQueue.
+    private fun recordLatency(chat: Chat, starts: List<Long>, sent: CompletableFuture<*>) {
+        sent.whenComplete { _, _ ->
+            val latency = latencies.computeIfAbsent(chat) { LatencyHistogram() }
+            val now = System.nanoTime()
+            starts.forEach { latency.record((now - it) / 1000) }
+        }
+    }
+
+    /**
+     * Joins [lines] with newlines into as few messages as possible without any going over [limit] characters. A line
+     * that's over the limit by itself gets a message to itself.
+     */
+    fun joinLines(lines: List<String>, limit: Int?): List<String> {
+        if (limit == null)
+            return listOf(lines.joinToString("\n"))
+        val messages = mutableListOf<String>()
+        val current = StringBuilder()
+        for (line in lines) {
+            if (current.isNotEmpty() && current.length + 1 + line.length > limit) {
+                messages.add(current.toString())
+                current.setLength(0)
+            }
+            if (current.isNotEmpty())
+                current.append('\n')
+            current.append(line)
+        }
+        if (current.isNotEmpty())
+            messages.add(current.toString())
+        return messages
+    }
+
+    private fun render(protocol: Protocol, senderName: String, text: String): String {
+        // Try to get the delimiters for bold, if possible.
+        val delimiters = if (protocol is CanFormatMessages && Format.bold in protocol.supportedFormats)
+            protocol.getDelimiters(Format.bold)
+        else
+            null
+        return "${delimiters?.first.orEmpty()}$senderName:${delimiters?.second.orEmpty()} $text"
+    }
 }
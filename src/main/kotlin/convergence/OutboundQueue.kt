@@ -0,0 +1,128 @@
+package convergence
+
+import java.util.ArrayDeque
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.LongAdder
+
+/** How urgently a message needs to go out. When a chat has a backlog, the ones listed first here go out first. */
+enum class SendPriority { COMMAND_REPLY, NOTIFICATION, BRIDGE }
+
+/**
+ * Sends messages out, with the most urgent ones for each chat going first.
+ *
+ * Discord rate limits sending messages per channel, and JDA holds anything over the limit in the order it was queued,
+ * so if we handed everything to the protocol right away, a command reply could wait behind every bridged message that
+ * came before it. Instead, each chat only has one message with the protocol at a time, and the rest wait here until
+ * it's gone out. Each chat holds up to [Settings.outboundQueueCapacity] messages; past that, the least urgent are
+ * dropped.
+ */
+object OutboundQueue {
+    private class PendingSend(val message: OutgoingMessage, val priority: SendPriority) {
+        val queuedAt = System.nanoTime()
+        val result = CompletableFuture<Boolean>()
+    }
+
+    private class Outbox {
+        val queues = Array(SendPriority.entries.size) { ArrayDeque<PendingSend>() }
+        var size = 0
+        var sending = false
+    }
+
+    private val outboxes = ConcurrentHashMap<Chat, Outbox>()
+    private val pending = AtomicInteger()
+    private val waits = SendPriority.entries.associateWith { LatencyHistogram() }
+    private val drops = SendPriority.entries.associateWith { LongAdder() }
+    private val failureCount = LongAdder()
+
+    init {
+        MetricsReport.register {
+            listOf("Outbound: $queueDepth waiting, $failures failed to send.") + SendPriority.entries.map {
+                val wait = waitTime(it)
+                "Outbound $it: ${wait.count} sent, waited p50 ${formatLatency(wait.percentile(50.0))}, " +
+                        "p99 ${formatLatency(wait.percentile(99.0))}, ${dropped(it)} dropped"
+            }
+        }
+    }
+
+    /** How many messages are waiting to be handed to their protocol right now. */
+    val queueDepth get() = pending.get()
+    val failures get() = failureCount.sum()
+
+    /** How long messages of [priority] have waited here before being handed to their protocol. */
+    fun waitTime(priority: SendPriority) = waits.getValue(priority)
+
+    fun dropped(priority: SendPriority) = drops.getValue(priority).sum()
+
+    /**
+     * Queues [message] to be sent in [chat].
+     * @return A future that completes with whether the message was sent, or false if it was dropped.
+     */
+    fun send(chat: Chat, message: OutgoingMessage, priority: SendPriority): CompletableFuture<Boolean> {
+        val send = PendingSend(message, priority)
+        val outbox = outboxes.computeIfAbsent(chat) { Outbox() }
+        val dropped = synchronized(outbox) {
+            if (outbox.size < settings.outboundQueueCapacity.coerceAtLeast(1)) {
+                outbox.queues[priority.ordinal].addLast(send)
+                outbox.size++
+                pending.incrementAndGet()
+                null
+            } else {
+                // Make room by dropping the newest of the least urgent messages, unless that's less urgent than this.
+                val leastUrgent = outbox.queues.indexOfLast { it.isNotEmpty() }
+                if (leastUrgent <= priority.ordinal)
+                    send
+                else
+                    outbox.queues[leastUrgent].pollLast().also { outbox.queues[priority.ordinal].addLast(send) }
+            }
+        }
+        if (dropped != null) {
+            drops.getValue(dropped.priority).increment()
+            dropped.result.complete(false)
+        }
+        drain(chat, outbox)
+        return send.result
+    }
+
+    // Hands the chat's most urgent message to its protocol if it isn't already sending one. Protocols that send
+    // synchronously finish right away, so keep going in a loop instead of recursing for each message.
+    private fun drain(chat: Chat, outbox: Outbox) {
+        while (true) {
+            val next = synchronized(outbox) {
+                if (outbox.sending)
+                    return
+                val next = outbox.queues.firstNotNullOfOrNull { it.pollFirst() } ?: return
+                outbox.size--
+                outbox.sending = true
+                next
+            }
+            pending.decrementAndGet()
+            waits.getValue(next.priority).record((System.nanoTime() - next.queuedAt) / 1000)
+            val sent = try {
+                chat.protocol.sendMessageAsync(chat, next.message)
+            } catch(e: Exception) {
+                CompletableFuture.failedFuture(e)
+            }
+            if (!sent.isDone) {
+                sent.whenComplete { _, _ ->
+                    finish(outbox, next, sent)
+                    drain(chat, outbox)
+                }
+                return
+            }
+            finish(outbox, next, sent)
+        }
+    }
+
+    private fun finish(outbox: Outbox, send: PendingSend, sent: CompletableFuture<Boolean>) {
+        synchronized(outbox) { outbox.sending = false }
+        send.result.complete(try {
+            sent.join()
+        } catch(e: Exception) {
+            failureCount.increment()
+            defaultLogger.error("Failed to send a message!", e.cause ?: e)
+            false
+        })
+    }
+}
@@ -1,72 +1,172 @@
 package convergence
 
 import com.fasterxml.jackson.annotation.JsonProperty
-import convergence.discord.calendar.CalendarProcessor
 import org.ocpsoft.prettytime.PrettyTime
 import org.ocpsoft.prettytime.units.JustNow
+import java.nio.file.Path
 import java.time.OffsetDateTime
-import java.time.temporal.ChronoUnit
+import java.util.PriorityQueue
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ConcurrentSkipListMap
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.locks.LockSupport
 
 /**
- * Checks if commands or tasks scheduled for later are ready to be run yet.
+ * Runs commands and tasks scheduled for later. Its thread sleeps until the next one is due instead of checking every
+ * second, so it's on time to the millisecond and does nothing while it waits. Due items are handed to
+ * [Settings.schedulerThreads] worker threads to run, so the scheduler thread only keeps time, and a slow one (like a
+ * reminder waiting on Discord) doesn't hold up everything else due around then.
+ *
+ * Anything can be scheduled from any thread without locking: new items go in a lock-free inbox, and the scheduler
+ * thread moves them into a heap ordered by time that only it touches, so hundreds of thousands of them can wait here
+ * cheaply. If something's scheduled sooner than what the thread is sleeping until, it's woken up early.
  * Can give information on what's in its queue.
  */
 @Suppress("ConstPropertyName")
-object Scheduler: Thread() {
-    private const val allowedTimeDifferenceSeconds = 30
-    private const val updatesPerSecond = 1
+object Scheduler: Thread("scheduler") {
+    private const val allowedTimeDifferenceMillis = 30_000L
 
-    private val scheduledCommands = sortedMapOf<OffsetDateTime, MutableList<ScheduledCommand>>()
-    private val commandsList = sortedMapOf<Int, ScheduledCommand>()
+    private class Entry(val item: Schedulable, val sequence: Long): Comparable<Entry> {
+        val due = item.time.toInstant().toEpochMilli()
+
+        // Things due at the same time run in the order they were scheduled.
+        override fun compareTo(other: Entry) =
+            if (due != other.due) due.compareTo(other.due) else sequence.compareTo(other.sequence)
+    }
+
+    private val inbox = ConcurrentLinkedQueue<Entry>()
+    // Only touched by runDue, so it doesn't need to be thread safe.
+    private val queue = PriorityQueue<Entry>()
+    private val sequence = AtomicLong()
+    private val pendingCount = AtomicInteger()
+    // When the thread will wake up next, so scheduling something only wakes it if it's due sooner than that.
+    @Volatile
+    private var nextWake = Long.MAX_VALUE
+    private val commandsList = ConcurrentSkipListMap<Int, ScheduledCommand>()
     private val currentId = AtomicInteger(0)
-    val taskList = mutableListOf<ScheduledTask>()
+    private val skippedCount = LongAdder()
+    // Blocks the scheduler thread if it fills up, since dropping something that was scheduled would be worse than
+    // running everything a little late.
+    private val workers by lazy {
+        EventExecutor("scheduled", settings.schedulerThreads, settings.schedulerQueueCapacity, OverflowPolicy.BLOCK)
+    }
+
+    /** How many commands and tasks are waiting to run. */
+    val pending get() = pendingCount.get()
+    /** How many due commands and tasks are waiting for a worker thread. */
+    val waitingForWorker get() = workers.queueDepth
+    /**
+     * How late commands and tasks started compared to when they were scheduled for, including any time spent waiting
+     * for a worker thread.
+     */
+    val lateness = LatencyHistogram()
+    /** How long commands and tasks took to run. */
+    val runtime = LatencyHistogram()
+    /** How many commands weren't run because they were missed by over 30 seconds, like when the bot was down. */
+    val skipped get() = skippedCount.sum()
 
-    fun loadFromFile() {
-        settings.serializedCommands.values.forEach { cmd ->
+    init {
+        MetricsReport.register {
+            listOf(
+                "Scheduler: $pending waiting, $waitingForWorker due and waiting for a thread, " +
+                        "$skipped missed commands skipped.",
+                "Scheduled items: started p50 ${formatLatency(lateness.percentile(50.0))} late, " +
+                        "p99 ${formatLatency(lateness.percentile(99.0))} late, " +
+                        "ran p50 ${formatLatency(runtime.percentile(50.0))}, " +
+                        "p99 ${formatLatency(runtime.percentile(99.0))}, max ${formatLatency(runtime.max)}"
+            )
+        }
+    }
+
+    /**
+     * Loads the scheduled commands from the [CommandJournal]. If there's no journal yet, it's started with any commands
+     * an older settings.json had in [Settings.serializedCommands], which are then forgotten.
+     */
+    fun loadFromFile(journal: Path = CommandJournal.defaultPath) {
+        val commands = CommandJournal.open(journal, settings.serializedCommands.toMap())
+        settings.serializedCommands.clear()
+        commands.values.forEach { cmd ->
             commandsList[cmd.id] = cmd
-            scheduledCommands.getOrPut(cmd.time) { mutableListOf(cmd) }
+            submit(cmd)
         }
     }
 
     override fun run() {
-        while (isAlive) {
-            val now = OffsetDateTime.now()
-            val timesToRemove = mutableListOf<OffsetDateTime>()
-            for ((cmdTime, cmdList) in scheduledCommands) {
-                if (cmdTime.isBefore(now)) {
-                    if (cmdTime.until(now, ChronoUnit.SECONDS) in 0..allowedTimeDifferenceSeconds) {
-                        for (cmd in cmdList) {
-                            cmd()
-                            commandsList.remove(cmd.id)
-                            settings.serializedCommands.remove(cmd.id)
-                        }
-                    } else {
-                        for (cmd in cmdList) {
-                            commandsList.remove(cmd.id)
-                            settings.serializedCommands.remove(cmd.id)
-                        }
-                    }
-                    if (cmdList.isNotEmpty())
-                        updateSettings()
-                    timesToRemove.add(cmdTime)
-                } else // It's already sorted chronologically, so all following events are early.
-                    break
+        while (true) {
+            val next = runDue()
+            nextWake = next
+            // Anything scheduled since runDue looked might not have woken us up, so check before going to sleep.
+            if (inbox.isNotEmpty())
+                continue
+            val delay = next - System.currentTimeMillis()
+            if (delay > 0)
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(delay))
+        }
+    }
+
+    /**
+     * Hands everything due at or before [now], in epoch milliseconds, to the worker threads. Only the scheduler thread
+     * should call this.
+     * @return When the next thing is due in epoch milliseconds, or [Long.MAX_VALUE] if nothing is scheduled.
+     */
+    internal fun runDue(now: Long = System.currentTimeMillis()): Long {
+        while (true)
+            queue.add(inbox.poll() ?: break)
+        while (true) {
+            val next = queue.peek() ?: return Long.MAX_VALUE
+            if (next.due > now)
+                return next.due
+            queue.poll()
+            fire(next, now)
+        }
+    }
+
+    private fun fire(entry: Entry, now: Long) {
+        val item = entry.item
+        // Unscheduled commands are left in the queue and dropped here, since taking them out of the heap is slow.
+        if (item is ScheduledCommand && !commandsList.remove(item.id, item))
+            return
+        pendingCount.decrementAndGet()
+        val late = now - entry.due
+        if (item is ScheduledCommand) {
+            CommandJournal.remove(item.id)
+            if (late > allowedTimeDifferenceMillis) {
+                skippedCount.increment()
+                defaultLogger.warn("Skipping scheduled command \"${item.commandName}\" since it was due ${late}ms ago.")
+                return
             }
-            timesToRemove.forEach { scheduledCommands.remove(it) }
-            val iter = taskList.iterator()
-            while (iter.hasNext()) {
-                val task = iter.next()
-                if (now.isAfter(task.time)) {
-                    task.fct.run()
-                    iter.remove()
+        }
+        val handedOff = System.nanoTime()
+        workers.execute {
+            val started = System.nanoTime()
+            lateness.record(late * 1000 + (started - handedOff) / 1000)
+            try {
+                when (item) {
+                    is ScheduledCommand -> item()
+                    is ScheduledTask -> item.fct.run()
                 }
+            } catch(e: Exception) {
+                defaultLogger.error("Scheduled ${item::class.simpleName} threw an exception!", e)
+            } finally {
+                runtime.record((System.nanoTime() - started) / 1000)
             }
-            CalendarProcessor.onUpdate()
-            sleep((1000.0 / updatesPerSecond).toLong())
         }
     }
 
+    private fun submit(item: Schedulable) {
+        val entry = Entry(item, sequence.getAndIncrement())
+        inbox.add(entry)
+        pendingCount.incrementAndGet()
+        if (entry.due < nextWake)
+            LockSupport.unpark(this)
+    }
+
+    /** Schedules [task] to run at its [time][ScheduledTask.time]. */
+    fun schedule(task: ScheduledTask) = submit(task)
+
     /**
      * Schedules [commandName] sent by [sender] to run at [time] with [args] as its arguments.
      * @return The response the user will get from the command.
@@ -76,12 +176,10 @@ object Scheduler: Thread() {
         while (id in commandsList)
             id = currentId.getAndIncrement()
         val cmd = ScheduledCommand(time, chat, sender, chat.protocol.name, commandName, args, id)
-        scheduledCommands.getOrPut(time) { mutableListOf() }.add(cmd)
-        if (cmd.id in commandsList)
+        if (commandsList.putIfAbsent(cmd.id, cmd) != null)
             defaultLogger.error("Duplicate IDs in schedulerThread!")
-        commandsList[cmd.id] = cmd
-        settings.serializedCommands[cmd.id] = cmd
-        updateSettings()
+        CommandJournal.add(cmd)
+        submit(cmd)
         return "Scheduled ${getUserName(chat, sender)} to run " +
                 "\"$commandName ${args.joinToString(" ")}\" ${formatTime(time)} ($time)."
     }
@@ -104,9 +202,17 @@ object Scheduler: Thread() {
      * Removes a command from the queue.
      */
     fun unschedule(index: Int) = commandsList.remove(index)?.let {
-        settings.serializedCommands.remove(it.id)
-        scheduledCommands[it.time]?.remove(it)
+        CommandJournal.remove(it.id)
+        pendingCount.decrementAndGet()
     } != null
+
+    fun clear() {
+        inbox.clear()
+        queue.clear()
+        commandsList.clear()
+        pendingCount.set(0)
+        skippedCount.reset()
+    }
 }
 
 private val prettyTime = PrettyTime().also { it.removeUnit(JustNow::class.java) }
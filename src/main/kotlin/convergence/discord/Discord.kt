@@ -19,37 +19,24 @@ import net.dv8tion.jda.api.events.message.MessageReceivedEvent
 import net.dv8tion.jda.api.events.message.react.MessageReactionAddEvent
 import net.dv8tion.jda.api.events.message.react.MessageReactionRemoveEvent
 import net.dv8tion.jda.api.hooks.ListenerAdapter
-import net.dv8tion.jda.api.interactions.InteractionContextType
 import net.dv8tion.jda.api.interactions.commands.OptionType
-import net.dv8tion.jda.api.interactions.commands.build.Commands
-import net.dv8tion.jda.api.interactions.commands.build.OptionData
 import net.dv8tion.jda.api.requests.GatewayIntent
 import net.dv8tion.jda.api.utils.FileUpload
 import net.dv8tion.jda.api.utils.MemberCachePolicy
 import net.dv8tion.jda.api.utils.cache.CacheFlag
 import net.dv8tion.jda.api.utils.messages.MessageCreateBuilder
 import net.dv8tion.jda.api.utils.messages.MessageCreateData
-import org.apache.http.auth.AuthScope
-import org.apache.http.auth.UsernamePasswordCredentials
-import org.apache.http.client.methods.HttpPut
-import org.apache.http.entity.ByteArrayEntity
-import org.apache.http.entity.ContentType
-import org.apache.http.impl.client.BasicCredentialsProvider
-import org.apache.http.impl.client.CloseableHttpClient
-import org.apache.http.impl.client.HttpClients
-import org.apache.http.util.EntityUtils
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 import java.io.FileNotFoundException
 import java.io.InputStream
 import java.net.URI
-import java.net.URLEncoder
 import java.nio.file.Files
 import java.time.OffsetDateTime
 import java.time.format.DateTimeFormatter
+import java.util.concurrent.CompletableFuture
 import kotlin.contracts.ExperimentalContracts
 import kotlin.contracts.contract
-import kotlin.math.min
 
 lateinit var jda: JDA
 
@@ -77,6 +64,10 @@ class DiscordServer(name: String, val guild: Guild): Server(name, DiscordProtoco
     }
 
     override fun toKey() = "DiscordServer(${guild.idLong})"
+
+    override fun hashCode() = guild.idLong.hashCode()
+    override fun equals(other: Any?) =
+        this === other || (javaClass == other?.javaClass && guild.idLong == (other as DiscordServer).guild.idLong)
 }
 
 val serverCache = mutableMapOf<Long, DiscordServer>()
@@ -169,26 +160,8 @@ val formatMap = mapOf(
 
 class DiscordImage(val image: Message.Attachment): Image() {
     override fun getURL() = URI(image.url)
-    override fun getStream(): InputStream = image.proxy.download().get()
-}
-
-private val webdavClient: CloseableHttpClient by lazy {
-    val credentials = BasicCredentialsProvider().apply {
-        setCredentials(AuthScope.ANY, UsernamePasswordCredentials("bot", nextcloudPassword ?: ""))
-    }
-    HttpClients.custom().setDefaultCredentialsProvider(credentials).build()
-}
-
-fun uploadImage(discordURL: URI, uploadURL: URI?, filename: String) {
-    if (uploadURL == null)
-        return
-    val connection = discordURL.toURL().openConnection()
-    val encoding = connection.contentEncoding
-    val content = connection.getInputStream().readAllBytes()
-    val put = HttpPut(uploadURL.toString() + "/" + URLEncoder.encode(filename, "UTF8")).apply {
-        entity = ByteArrayEntity(content, encoding?.let { ContentType.create(it) })
-    }
-    webdavClient.execute(put).use { it.entity?.let(EntityUtils::consumeQuietly) }
+    override fun getStream(): InputStream =
+        AttachmentCache.open("Discord:${image.idLong}") { image.proxy.download().get() }
 }
 
 class DiscordOutgoingMessage(val data: MessageCreateData): OutgoingMessage() {
@@ -229,7 +202,7 @@ fun ArgumentType.toDiscord() = when(this) {
 
 object DiscordProtocol: Protocol("Discord"), CanFormatMessages, HasNicknames, HasImages, CanMentionUsers,
     HasMessageHistory, CanEditOtherMessages, HasUserAvailability, HasCustomEmoji, HasServers<DiscordServer>,
-    HasReactions, HasRoles<DiscordRole> {
+    HasReactions, HasRoles<DiscordRole>, HasMessageLengthLimit {
     override fun init() {
         discordLogger.info("Discord Plugin initialized.")
         jda = try {
@@ -265,53 +238,30 @@ object DiscordProtocol: Protocol("Discord"), CanFormatMessages, HasNicknames, Ha
         tryRegisterFratCommands()
         discordLogger.info("JDA Initialized.")
         jda.addEventListener(MessageListener)
-        callbacks.getOrPut(ReceivedImages::class) { mutableListOf() }.add(imageUploadChannelCallback)
-        callbacks.getOrPut(ReactionChanged::class) { mutableListOf() }.add(reactionChannelCallback)
+        imageUploadSubscription = ReceivedImages.subscribeAsync(imageUploadChannelCallback, listOf())
+        reactionSubscription = ReactionChanged.subscribeAsync(reactionChannelCallback, listOf())
         jda.awaitReady()
     }
 
     override fun configLoaded() {
-        jda.guilds.forEach { guild ->
-            val slashCommands = guild.updateCommands()
-            slashCommands.addCommands(
-                listOf(bot.commands[DiscordProtocol]!!, bot.commands[UniversalProtocol]!!)
-                    .flatMap { commandMap ->
-                        commandMap.map { (name, command) ->
-                            Commands.slash(name.lowercase(), command.helpText.take(100))
-                                .setContexts(InteractionContextType.GUILD)
-                                .addOptions(
-                                    command.argSpecs.map {
-                                        OptionData(it.type.toDiscord(), it.name.lowercase(), it.name, !it.optional)
-                                    }
-                                )
-                        }
-                    }
-            ).queue()
-        }
+        updateEventSubscriptions()
+        SlashCommandSync.syncAll()
     }
 
     override fun aliasCreated(alias: Alias) {
-        val slashCommands = when(alias.scope) {
-            is DiscordServer -> alias.scope
-            is DiscordChat -> alias.scope.server
-            else -> return
-        }.guild.updateCommands()
-        val startIndex = min(alias.args.size, alias.command.argSpecs.size)
-        slashCommands.addCommands(
-            Commands.slash(
-                alias.name.lowercase(),
-                "Alias that runs ${alias.command.name} with these arguments: ${alias.args}".take(100)
-            )
-                .setContexts(InteractionContextType.GUILD)
-                .addOptions(alias.command.argSpecs.subList(startIndex, alias.command.argSpecs.size).map {
-                    OptionData(it.type.toDiscord(), it.name.lowercase(), it.name, !it.optional)
-                })
-        ).queue()
+        SlashCommandSync.guildOf(alias.scope)?.let(SlashCommandSync::requestSync)
+    }
+
+    override fun aliasRemoved(alias: Alias) {
+        SlashCommandSync.guildOf(alias.scope)?.let(SlashCommandSync::requestSync)
     }
 
     @JsonIgnore
     override val supportedFormats = formatMap.keys
 
+    @JsonIgnore
+    override val maxMessageLength = 2000
+
     override fun userFromKey(key: String): User? {
         if (key.startsWith("DiscordUser("))
             return DiscordUser(key.substringBetween("DiscordUser(", ")").toLong())
@@ -392,9 +342,7 @@ object DiscordProtocol: Protocol("Discord"), CanFormatMessages, HasNicknames, Ha
                     else -> chat.channel.sendMessage(
                         MessageCreateBuilder()
                             .addFiles(discordImages.map {
-                                FileUpload.fromStreamSupplier(it.image.fileName) {
-                                    it.image.proxy.download().join()
-                                }
+                                FileUpload.fromStreamSupplier(it.image.fileName, it::getStream)
                             })
                             .setContent(message.toSimple().text)
                             .build()
@@ -494,22 +442,31 @@ object DiscordProtocol: Protocol("Discord"), CanFormatMessages, HasNicknames, Ha
 
     override fun getDelimiters(format: Format): Pair<String, String>? = formatMap[format]
     override fun getEmojis(chat: Chat): List<DiscordEmoji> = jda.emojis.map { DiscordEmoji(it) }
+    // Only reports failures that happen before the message is handed to JDA; use sendMessageAsync to hear about the rest.
     override fun sendMessage(chat: Chat, message: OutgoingMessage): Boolean {
+        val sent = sendMessageAsync(chat, message).whenComplete { _, e ->
+            if (e != null)
+                discordLogger.error("Failed to send message, exception: ", e)
+        }
+        return !sent.isCompletedExceptionally && (!sent.isDone || sent.getNow(false))
+    }
+
+    override fun sendMessageAsync(chat: Chat, message: OutgoingMessage): CompletableFuture<Boolean> {
         if (chat !is DiscordChat)
-            return false
+            return CompletableFuture.completedFuture(false)
         return try {
-            when(message) {
-                is DiscordOutgoingMessage -> chat.channel.sendMessage(message.data).queue()
+            val action = when(message) {
+                is DiscordOutgoingMessage -> chat.channel.sendMessage(message.data)
                 else -> {
                     val text = message.toSimple().text
-                    if (text.isNotEmpty())
-                        chat.channel.sendMessage(text.take(2000)).queue()
+                    if (text.isEmpty())
+                        return CompletableFuture.completedFuture(true)
+                    chat.channel.sendMessage(text.take(maxMessageLength))
                 }
             }
-            true
+            action.submit().thenApply { true }
         } catch(e: Exception) {
-            discordLogger.error("Failed to send message, exception: ", e)
-            false
+            CompletableFuture.failedFuture(e)
         }
     }
 
@@ -655,14 +612,38 @@ private fun forwardMessageToReactChannel(
     forwardedMessages.getOrPut(server.guild.idLong) { mutableSetOf() }.add(message.data.idLong)
 }
 
+private var imageUploadSubscription: EventDispatcher<ReceivedImages>.Subscription? = null
+private var reactionSubscription: EventDispatcher<ReactionChanged>.Subscription? = null
+
+private val subscriptionUpdaters = mutableListOf<() -> Unit>()
+
+/**
+ * Points the image upload and reaction forwarding listeners at the chats in [Settings.imageUploadChannels] and the
+ * servers and emojis in [Settings.reactServers], so they don't run for events anywhere else, along with anything
+ * added with [addSubscriptionUpdater].
+ */
+fun updateEventSubscriptions() {
+    imageUploadSubscription?.scopes = settings.imageUploadChannels.keys.map { EventScope.of(it) }
+    reactionSubscription?.scopes = settings.reactServers.flatMap { (server, configs) ->
+        configs.flatMap { it.emojis.keys }.distinct().map { EventScope.of(server, it) }
+    }
+    synchronized(subscriptionUpdaters) { subscriptionUpdaters.toList() }.forEach { it() }
+}
+
+/** Runs [updater] now, and again whenever [updateEventSubscriptions] is called. */
+fun addSubscriptionUpdater(updater: () -> Unit) {
+    synchronized(subscriptionUpdaters) { subscriptionUpdaters.add(updater) }
+    updater()
+}
+
 private val imageUploadChannelCallback =
     ReceivedImages { chat: Chat, _: IncomingMessage?, _: User, images: Array<Image> ->
         for (image in images) {
             if (image is DiscordImage && chat in settings.imageUploadChannels) {
-                val uploadURL = settings.imageUploadChannels[chat]
+                val uploadURL = settings.imageUploadChannels[chat] ?: continue
                 val timeCreated = image.image.timeCreated.format(DateTimeFormatter.ISO_INSTANT)
                 val filename = image.image.fileName.substringBeforeLast(".")
-                uploadImage(image.getURL(), uploadURL, "$filename-$timeCreated${image.image.fileExtension ?: ""}")
+                ImageUploader.upload(image, uploadURL, "$filename-$timeCreated${image.image.fileExtension ?: ""}")
             }
         }
         true
@@ -695,24 +676,21 @@ object MessageListener: ListenerAdapter() {
         val chat = DiscordChat(event)
         val sender = DiscordUser(event)
         val message = DiscordIncomingMessage(event.message)
-        // If I just grab this from mentions.members, it's deduplicated. We have to pull it out manually.
-        val mentionedMembers = mentionRegex.findAll(event.message.contentRaw)
-            .map {
-                event.guild.getMemberById(it.groupValues[1]) ?:
-                    event.guild.retrieveMemberById(it.groupValues[1]).submit().join()
-            }
-            .toList()
-        if (mentionedMembers.isNotEmpty())
-            DiscordProtocol.mentionedUsers(
-                chat,
-                DiscordIncomingMessage(event.message),
-                sender,
-                mentionedMembers.map { DiscordUser(it) }
-            )
-        val images = event.message.attachments
-            .filter { it.isImage }
-            .map { DiscordImage(it) }
-            .toTypedArray()
+        // Mentions are only worked out if something's listening for them here, since finding the mentioned members can
+        // mean a request to Discord for each one. Images always are, since the default listener and bridging need them.
+        if (MentionedUser.hasListeners(chat)) {
+            // If I just grab this from mentions.members, it's deduplicated. We have to pull it out manually.
+            val mentionedMembers = mentionRegex.findAll(event.message.contentRaw)
+                .map {
+                    event.guild.getMemberById(it.groupValues[1]) ?:
+                        event.guild.retrieveMemberById(it.groupValues[1]).submit().join()
+                }
+                .toList()
+            if (mentionedMembers.isNotEmpty())
+                DiscordProtocol.mentionedUsers(chat, message, sender, mentionedMembers.map { DiscordUser(it) })
+        }
+        val attachments = event.message.attachments
+        val images = attachments.filter { it.isImage }.map { DiscordImage(it) }.toTypedArray()
         if (images.isNotEmpty())
             DiscordProtocol.receivedImages(chat, message, sender, *images)
         else
@@ -727,22 +705,45 @@ object MessageListener: ListenerAdapter() {
         val commandWithArgs =
             parseCommand(commandDelimiter + event.name + event.options.joinToString(" ", " ") { it.asString }, chat)
                 ?: return
-        val msg = commandWithArgs.command(commandWithArgs.args, chat, sender)
-        event.reply((msg as? DiscordOutgoingMessage ?: DiscordOutgoingMessage(msg!!.toSimple().text)).data).queue()
+        // Run the command off of JDA's event thread, and reply once it's done.
+        event.deferReply().queue()
+        // The deferred reply has to be answered no matter what, or the user sees "thinking..." forever.
+        val queued = CommandExecutor.submit(chat) {
+            try {
+                when (val msg = commandWithArgs.command(commandWithArgs.args, chat, sender)) {
+                    null -> event.hook.deleteOriginal().queue()
+                    is DiscordOutgoingMessage -> event.hook.sendMessage(msg.data).queue()
+                    else -> event.hook.sendMessage(DiscordOutgoingMessage(msg.toSimple().text).data).queue()
+                }
+            } catch(e: Exception) {
+                discordLogger.error("Slash command ${event.name} failed in $chat!", e)
+                event.hook.sendMessage("Something went wrong running ${event.name}: ${e.message}").queue()
+            }
+        }
+        if (!queued)
+            event.hook.sendMessage("Too many commands are waiting to run right now. Try again in a bit.").queue()
     }
     val forwardedMessages = mutableMapOf<Long, MutableSet<Long>>()
 
+    private fun toIEmoji(emoji: Emoji): IEmoji =
+        if (emoji.type == Emoji.Type.UNICODE) UnicodeEmoji(emoji.name) else DiscordEmoji(emoji as DCustomEmoji)
+
+    // Getting the message is a request to Discord, so only do it if something's listening for this emoji here. Parsing
+    // the emoji isn't free either, so that waits until something's listening here at all.
     override fun onMessageReactionRemove(event: MessageReactionRemoveEvent) {
+        val chat = DiscordChat(event.guildChannel)
+        if (!ReactionChanged.hasListenersForAnyEmoji(chat))
+            return
+        val emoji = toIEmoji(event.emoji)
+        if (!ReactionChanged.hasListeners(chat, emoji.asString()))
+            return
         event.retrieveMessage().queue {
             val count = it.getReaction(event.reaction.emoji)?.count ?: return@queue
             DiscordProtocol.reactionChanged(
                 DiscordProtocol.getUser(event.user?.idLong) ?: return@queue,
-                DiscordChat(event.guildChannel),
+                chat,
                 DiscordIncomingMessage(it),
-                if (event.emoji.type == Emoji.Type.UNICODE)
-                    UnicodeEmoji(event.emoji.name)
-                else
-                    DiscordEmoji(event.emoji as DCustomEmoji),
+                emoji,
                 count + 1,
                 count
             )
@@ -751,16 +752,19 @@ object MessageListener: ListenerAdapter() {
     }
 
     override fun onMessageReactionAdd(event: MessageReactionAddEvent) {
+        val chat = DiscordChat(event.guildChannel)
+        if (!ReactionChanged.hasListenersForAnyEmoji(chat))
+            return
+        val emoji = toIEmoji(event.emoji)
+        if (!ReactionChanged.hasListeners(chat, emoji.asString()))
+            return
         event.retrieveMessage().queue {
             val count = it.getReaction(event.reaction.emoji)?.count ?: return@queue
             DiscordProtocol.reactionChanged(
                 DiscordProtocol.getUser(event.user?.idLong) ?: return@queue,
-                DiscordChat(event.guildChannel),
+                chat,
                 DiscordIncomingMessage(it),
-                if (event.emoji.type == Emoji.Type.UNICODE)
-                    UnicodeEmoji(event.emoji.name)
-                else
-                    DiscordEmoji(event.emoji as DCustomEmoji),
+                emoji,
                 count - 1,
                 count
             )
@@ -3,6 +3,8 @@ package convergence.discord
 import convergence.*
 import java.net.URI
 import java.net.URISyntaxException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
 
 val discordEmojiRegex = Regex("^<a?:[a-zA-Z0-9_-]{1,100}:[0-9]{1,20}>$")
 
@@ -20,17 +22,18 @@ private fun registerReactChannel(args: List<String>, chat: Chat): String {
     if (threshold == null || threshold <= 0)
         return "Threshold must be a positive integer."
     val reactConfigs = settings.reactServers.getOrPut(chat.server) {
-        mutableListOf(ReactConfig(chat, mutableMapOf()))
+        CopyOnWriteArrayList(listOf(ReactConfig(chat, ConcurrentHashMap())))
     }
     var reactConfig = reactConfigs.firstOrNull {
         it.destination == chat
     }
     if (reactConfig == null) {
-        reactConfig = ReactConfig(chat, mutableMapOf())
+        reactConfig = ReactConfig(chat, ConcurrentHashMap())
         reactConfigs.add(reactConfig)
     }
     reactConfig.emojis[emoji] = threshold
     updateSettings()
+    updateEventSubscriptions()
     return "Registered messages to be forwarded to this channel " +
             "if they are reacted with $emoji $threshold times or more."
 }
@@ -46,6 +49,7 @@ private fun uploadImagesTo(args: List<String>, chat: Chat): String {
     }
     settings.imageUploadChannels[chat] = url
     updateSettings()
+    updateEventSubscriptions()
     return "Images will now be uploaded to $url."
 }
 
@@ -66,6 +70,7 @@ fun registerDiscordCommands() {
         { _, chat: Chat ->
             settings.imageUploadChannels.remove(chat)
             updateSettings()
+            updateEventSubscriptions()
             "Images will no longer be uploaded."
         },
         "Stops images in this channel from being uploaded anywhere.",
@@ -88,6 +93,7 @@ fun registerDiscordCommands() {
                 return@cmd "This command can only be run on discord."
             settings.reactServers.remove(chat.server)
             updateSettings()
+            updateEventSubscriptions()
             "Messages will no longer be forwarded to this channel based on reactions."
         },
         "Removes messages being forwarded to this channel based on reactions.",
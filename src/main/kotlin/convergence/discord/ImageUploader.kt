@@ -0,0 +1,301 @@
+package convergence.discord
+
+import convergence.convergencePath
+import convergence.settings
+import org.apache.http.client.methods.HttpPut
+import org.apache.http.entity.ContentType
+import org.apache.http.entity.InputStreamEntity
+import org.apache.http.impl.client.CloseableHttpClient
+import org.apache.http.impl.client.HttpClients
+import org.apache.http.message.BasicHeader
+import org.apache.http.util.EntityUtils
+import java.io.BufferedWriter
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.net.URI
+import java.net.URLEncoder
+import java.nio.file.Files
+import java.nio.file.NoSuchFileException
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.security.DigestInputStream
+import java.security.MessageDigest
+import java.util.Base64
+import java.util.HexFormat
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Uploads images to WebDAV on [Settings.uploadThreads] threads of its own, so a big photo dump doesn't hold up the JDA
+ * thread that received it. Request bodies are streamed straight from [image][Upload.open], and failed uploads are
+ * retried with exponential backoff.
+ *
+ * The SHA-256 of the last [Settings.uploadedImageHashLimit] images uploaded is kept, so an image that's already been
+ * uploaded to a URL (say, the same photo posted twice) isn't uploaded there again. They're appended to
+ * uploadedImages.log next to settings.json as they're uploaded, which is rewritten with just the ones still kept once
+ * it gets to twice that many lines.
+ */
+object ImageUploader {
+    private const val MAX_ATTEMPTS = 5
+
+    private class Upload(
+        val uploadURL: URI,
+        val filename: String,
+        val contentType: String?,
+        val size: Long,
+        val open: () -> InputStream
+    ) {
+        val result = CompletableFuture<Boolean>()
+        lateinit var hash: String
+        val hashKey get() = hashKey(hash, uploadURL)
+    }
+
+    // How an upload is identified in uploadedHashes, uploadedImages.log, and inProgress.
+    private fun hashKey(hash: String, uploadURL: URI) = "$hash $uploadURL"
+
+    private val threadCount = AtomicInteger()
+    private val workers: ScheduledExecutorService by lazy {
+        Executors.newScheduledThreadPool(settings.uploadThreads.coerceAtLeast(1)) { runnable ->
+            Thread(runnable, "image-upload-${threadCount.incrementAndGet()}").apply { isDaemon = true }
+        }
+    }
+    // The credentials are sent up front rather than after a 401, since the body is streamed and can't be sent twice.
+    private val client: CloseableHttpClient by lazy {
+        val credentials = Base64.getEncoder().encodeToString("bot:${nextcloudPassword ?: ""}".toByteArray())
+        val connections = settings.uploadThreads.coerceAtLeast(1)
+        HttpClients.custom()
+            .setDefaultHeaders(listOf(BasicHeader("Authorization", "Basic $credentials")))
+            .setMaxConnTotal(connections)
+            .setMaxConnPerRoute(connections)
+            .build()
+    }
+    private val pending = AtomicInteger()
+    // The results of uploads being worked on right now, by hashKey, so the same image posted twice in a row is only
+    // uploaded once.
+    private val inProgress = ConcurrentHashMap<String, CompletableFuture<Boolean>>()
+    private val uploadedCount = AtomicLong()
+    private val skippedCount = AtomicLong()
+    private val retriedCount = AtomicLong()
+    private val failedCount = AtomicLong()
+    // The hashKey of each image uploaded, least recently uploaded first. Guarded by synchronizing on ImageUploader.
+    private val uploadedHashes = object: LinkedHashMap<String, Unit>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Unit>) =
+            size > settings.uploadedImageHashLimit.coerceAtLeast(1)
+    }
+    private var hashesLoaded = false
+    private var hashLog: BufferedWriter? = null
+    private var hashLogLines = 0
+    private val hashLogPath get() = convergencePath.resolve("uploadedImages.log")
+
+    /** How many uploads are waiting, running, or waiting to be retried right now. */
+    val queueDepth get() = pending.get()
+    val uploaded get() = uploadedCount.get()
+    /** How many uploads were skipped, since the image was already at the URL it was going to. */
+    val skipped get() = skippedCount.get()
+    val retried get() = retriedCount.get()
+    val failed get() = failedCount.get()
+
+    /**
+     * Queues [image] to be uploaded to [uploadURL] as [filename].
+     * @return A future that completes with whether the image is at [uploadURL] now, either from this upload or an
+     * earlier one. It's false if it couldn't be uploaded or [Settings.uploadQueueCapacity] uploads were already queued.
+     */
+    fun upload(image: DiscordImage, uploadURL: URI, filename: String) =
+        upload(uploadURL, filename, image.image.contentType, image.image.size.toLong(), image::getStream)
+
+    /**
+     * Queues the content [open] returns to be uploaded to [uploadURL] as [filename]. [open] may be called more than
+     * once, so it should be cheap to call again, like reading from the [convergence.AttachmentCache].
+     */
+    fun upload(
+        uploadURL: URI,
+        filename: String,
+        contentType: String?,
+        size: Long,
+        open: () -> InputStream
+    ): CompletableFuture<Boolean> {
+        val upload = Upload(uploadURL, filename, contentType, size, open)
+        if (pending.incrementAndGet() > settings.uploadQueueCapacity) {
+            pending.decrementAndGet()
+            failedCount.incrementAndGet()
+            discordLogger.warn("Too many images are waiting to be uploaded, so $filename won't be uploaded.")
+            upload.result.complete(false)
+        } else
+            workers.execute { start(upload) }
+        return upload.result
+    }
+
+    @Synchronized
+    fun clear() {
+        closeHashLog()
+        uploadedHashes.clear()
+        hashesLoaded = false
+        inProgress.clear()
+        uploadedCount.set(0)
+        skippedCount.set(0)
+        retriedCount.set(0)
+        failedCount.set(0)
+    }
+
+    private fun start(upload: Upload) {
+        try {
+            upload.hash = hashOf(upload.open)
+        } catch(e: Exception) {
+            discordLogger.error("Couldn't read ${upload.filename} to upload it!", e)
+            finish(upload, false)
+            return
+        }
+        if (isUploaded(upload.hashKey)) {
+            discordLogger.debug("${upload.filename} is already at ${upload.uploadURL}, so it won't be uploaded again.")
+            skippedCount.incrementAndGet()
+            finish(upload, true)
+            return
+        }
+        // If it's already being uploaded there, this one waits and goes however that upload does.
+        val inFlight = inProgress.putIfAbsent(upload.hashKey, upload.result)
+        if (inFlight != null) {
+            discordLogger.debug("${upload.filename} is already being uploaded to ${upload.uploadURL}, so it'll wait.")
+            inFlight.whenComplete { uploaded, _ ->
+                if (uploaded == true)
+                    skippedCount.incrementAndGet()
+                finish(upload, uploaded == true)
+            }
+            return
+        }
+        attempt(upload, 1)
+    }
+
+    private fun attempt(upload: Upload, attempt: Int) {
+        try {
+            put(upload)
+            recordUploaded(upload)
+            uploadedCount.incrementAndGet()
+            inProgress.remove(upload.hashKey)
+            finish(upload, true)
+        } catch(e: IOException) {
+            retryOrFail(upload, attempt, e)
+        } catch(e: Exception) {
+            fail(upload, e)
+        }
+    }
+
+    private fun retryOrFail(upload: Upload, attempt: Int, e: Exception) {
+        if (attempt >= MAX_ATTEMPTS) {
+            fail(upload, e)
+            return
+        }
+        val delay = settings.uploadRetryDelayMs shl (attempt - 1)
+        discordLogger.warn("Uploading ${upload.filename} failed (${e.message}), so it'll be retried in ${delay}ms.")
+        retriedCount.incrementAndGet()
+        workers.schedule({ attempt(upload, attempt + 1) }, delay, TimeUnit.MILLISECONDS)
+    }
+
+    private fun fail(upload: Upload, e: Exception) {
+        discordLogger.error("Failed to upload ${upload.filename} to ${upload.uploadURL}!", e)
+        failedCount.incrementAndGet()
+        inProgress.remove(upload.hashKey)
+        finish(upload, false)
+    }
+
+    private fun finish(upload: Upload, succeeded: Boolean) {
+        pending.decrementAndGet()
+        upload.result.complete(succeeded)
+    }
+
+    private fun put(upload: Upload) {
+        upload.open().use { stream ->
+            val put = HttpPut(upload.uploadURL.toString() + "/" + URLEncoder.encode(upload.filename, "UTF8")).apply {
+                entity = InputStreamEntity(stream, upload.size, upload.contentType?.let { ContentType.parse(it) })
+            }
+            client.execute(put).use { response ->
+                response.entity?.let(EntityUtils::consumeQuietly)
+                val status = response.statusLine.statusCode
+                when {
+                    status in 200..299 -> return
+                    // Timeouts, rate limits, and server errors might go away on their own. Anything else won't.
+                    status == 408 || status == 429 || status >= 500 ->
+                        throw IOException("HTTP $status")
+                    else -> throw IllegalStateException("HTTP $status")
+                }
+            }
+        }
+    }
+
+    private fun hashOf(open: () -> InputStream): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        DigestInputStream(open(), digest).use { it.transferTo(OutputStream.nullOutputStream()) }
+        return HexFormat.of().formatHex(digest.digest())
+    }
+
+    @Synchronized
+    private fun isUploaded(hashKey: String): Boolean {
+        loadHashes()
+        return hashKey in uploadedHashes
+    }
+
+    @Synchronized
+    private fun recordUploaded(upload: Upload) {
+        loadHashes()
+        val key = upload.hashKey
+        uploadedHashes[key] = Unit
+        try {
+            val log = hashLog
+                ?: Files.newBufferedWriter(hashLogPath, StandardOpenOption.CREATE, StandardOpenOption.APPEND)
+                    .also { hashLog = it }
+            log.write(key)
+            log.newLine()
+            log.flush()
+            hashLogLines++
+        } catch(e: Exception) {
+            discordLogger.error("Failed to record that ${upload.hash} was uploaded to ${upload.uploadURL}!", e)
+        }
+        if (hashLogLines > uploadedHashes.size * 2)
+            rewriteHashLog()
+    }
+
+    // Reads the hashes from the log the first time they're needed.
+    private fun loadHashes() {
+        if (hashesLoaded)
+            return
+        hashesLoaded = true
+        val lines = try {
+            Files.readAllLines(hashLogPath)
+        } catch(_: NoSuchFileException) {
+            return
+        } catch(e: Exception) {
+            discordLogger.error("Couldn't read the uploaded image hashes from $hashLogPath!", e)
+            return
+        }
+        lines.filter { it.isNotBlank() }.forEach { uploadedHashes[it] = Unit }
+        hashLogLines = lines.size
+        if (hashLogLines > uploadedHashes.size)
+            rewriteHashLog()
+    }
+
+    private fun rewriteHashLog() {
+        closeHashLog()
+        val temp = hashLogPath.resolveSibling("uploadedImages.log.tmp")
+        try {
+            Files.write(temp, uploadedHashes.keys)
+            Files.move(temp, hashLogPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+            hashLogLines = uploadedHashes.size
+        } catch(e: Exception) {
+            discordLogger.error("Failed to rewrite $hashLogPath!", e)
+        }
+    }
+
+    private fun closeHashLog() {
+        try {
+            hashLog?.close()
+        } catch(e: Exception) {
+            discordLogger.error("Failed to close $hashLogPath!", e)
+        }
+        hashLog = null
+    }
+}
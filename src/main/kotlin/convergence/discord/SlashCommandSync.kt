@@ -0,0 +1,173 @@
+package convergence.discord
+
+import convergence.*
+import net.dv8tion.jda.api.entities.Guild
+import net.dv8tion.jda.api.interactions.InteractionContextType
+import net.dv8tion.jda.api.interactions.commands.OptionType
+import net.dv8tion.jda.api.interactions.commands.build.Commands
+import net.dv8tion.jda.api.interactions.commands.build.OptionData
+import java.security.MessageDigest
+import java.util.HexFormat
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+data class SlashCommandOption(val type: OptionType, val name: String, val description: String, val required: Boolean)
+
+/**
+ * Everything Discord knows about a slash command. Its [hash] is what's stored in [Settings.slashCommands], so changing
+ * any part of it will get it pushed again.
+ */
+data class SlashCommandDefinition(val name: String, val description: String, val options: List<SlashCommandOption>) {
+    val hash: String by lazy {
+        HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(toString().toByteArray()), 0, 16)
+    }
+
+    fun toCommandData() = Commands.slash(name, description)
+        .setContexts(InteractionContextType.GUILD)
+        .addOptions(options.map { OptionData(it.type, it.name, it.description, it.required) })
+
+    companion object {
+        fun of(command: Command) = SlashCommandDefinition(
+            command.name.lowercase(),
+            command.helpText.take(100),
+            command.argSpecs.map { it.toSlashOption() }
+        )
+
+        fun of(alias: Alias): SlashCommandDefinition {
+            val argSpecs = alias.command.argSpecs
+            return SlashCommandDefinition(
+                alias.name.lowercase(),
+                "Alias that runs ${alias.command.name} with these arguments: ${alias.args}".take(100),
+                argSpecs.subList(minOf(alias.args.size, argSpecs.size), argSpecs.size).map { it.toSlashOption() }
+            )
+        }
+
+        private fun ArgumentSpec.toSlashOption() =
+            SlashCommandOption(type.toDiscord(), name.lowercase(), name, !optional)
+    }
+}
+
+/** What has to be sent to Discord to get a guild from what was last pushed to what it should have now. */
+class SlashCommandDiff(val upserts: List<SlashCommandDefinition>, val deletes: Map<String, PushedSlashCommand>) {
+    val isEmpty get() = upserts.isEmpty() && deletes.isEmpty()
+
+    companion object {
+        fun of(pushed: Map<String, PushedSlashCommand>, desired: Collection<SlashCommandDefinition>): SlashCommandDiff {
+            val desiredNames = desired.mapTo(HashSet()) { it.name }
+            return SlashCommandDiff(
+                desired.filter { pushed[it.name]?.hash != it.hash },
+                pushed.filterKeys { it !in desiredNames }
+            )
+        }
+    }
+}
+
+/**
+ * Keeps each guild's slash commands in line with the registered commands and aliases, sending only the commands that
+ * changed. Replacing a guild's whole command list is heavily rate limited, so that's only done the first time we see a
+ * guild. Alias changes are batched up for a couple of seconds, so making several in a row costs one sync.
+ */
+object SlashCommandSync {
+    private const val SYNC_DELAY_MS = 2000L
+
+    private val pendingGuilds = ConcurrentHashMap.newKeySet<Long>()
+    private val syncExecutor = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "slash-command-sync").apply { isDaemon = true }
+    }
+
+    fun syncAll() = jda.guilds.forEach(::sync)
+
+    /** Syncs [guild] in a couple of seconds, along with anything else that changes in it before then. */
+    fun requestSync(guild: Guild) {
+        val guildId = guild.idLong
+        if (pendingGuilds.add(guildId)) {
+            syncExecutor.schedule({
+                pendingGuilds.remove(guildId)
+                jda.getGuildById(guildId)?.let(::sync)
+            }, SYNC_DELAY_MS, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    fun sync(guild: Guild) {
+        val desired = definitionsFor(guild)
+        val pushed = pushedTo(guild.idLong)
+        if (pushed == null) {
+            overwrite(guild, desired)
+            return
+        }
+        val diff = SlashCommandDiff.of(pushed, desired)
+        if (diff.isEmpty)
+            return
+        discordLogger.info(
+            "Syncing slash commands in ${guild.name}: ${diff.upserts.size} changed, ${diff.deletes.size} removed."
+        )
+        for (definition in diff.upserts) {
+            guild.upsertCommand(definition.toCommandData()).queue(
+                { recordPushed(guild.idLong, definition, it.idLong) },
+                { discordLogger.error("Failed to push slash command ${definition.name} to ${guild.name}!", it) }
+            )
+        }
+        for ((name, command) in diff.deletes) {
+            guild.deleteCommandById(command.id).queue(
+                { forgetPushed(guild.idLong, name) },
+                { discordLogger.error("Failed to delete slash command $name from ${guild.name}!", it) }
+            )
+        }
+    }
+
+    /** The slash commands [guild] should have: every Discord and universal command, and every alias made in it. */
+    fun definitionsFor(guild: Guild): Collection<SlashCommandDefinition> {
+        val registry = CommandRegistry.snapshot
+        val definitions = LinkedHashMap<String, SlashCommandDefinition>()
+        // Later entries replace earlier ones with the same name, the same way commands are resolved.
+        registry.catalog.commandsFor(DiscordProtocol).sortedBy { it.protocol != UniversalProtocol }.forEach {
+            definitions[it.name.lowercase()] = SlashCommandDefinition.of(it)
+        }
+        registry.aliases.filterKeys { guildOf(it)?.idLong == guild.idLong }.values.forEach { aliasesInScope ->
+            aliasesInScope.values.forEach { definitions[it.name.lowercase()] = SlashCommandDefinition.of(it) }
+        }
+        return definitions.values
+    }
+
+    fun guildOf(scope: CommandScope) = when(scope) {
+        is DiscordServer -> scope.guild
+        is DiscordChat -> scope.server.guild
+        else -> null
+    }
+
+    private fun overwrite(guild: Guild, desired: Collection<SlashCommandDefinition>) {
+        discordLogger.info("Pushing all ${desired.size} slash commands to ${guild.name}.")
+        val byName = desired.associateBy { it.name }
+        guild.updateCommands().addCommands(desired.map { it.toCommandData() }).queue(
+            { commands ->
+                recordOverwritten(guild.idLong, commands.mapNotNull { command ->
+                    byName[command.name]?.let { it.name to PushedSlashCommand(command.idLong, it.hash) }
+                }.toMap())
+            },
+            { discordLogger.error("Failed to push slash commands to ${guild.name}!", it) }
+        )
+    }
+
+    @Synchronized
+    private fun pushedTo(guildId: Long): Map<String, PushedSlashCommand>? = settings.slashCommands[guildId]?.toMap()
+
+    @Synchronized
+    private fun recordOverwritten(guildId: Long, pushed: Map<String, PushedSlashCommand>) {
+        settings.slashCommands[guildId] = pushed.toMutableMap()
+        updateSettings()
+    }
+
+    @Synchronized
+    private fun recordPushed(guildId: Long, definition: SlashCommandDefinition, id: Long) {
+        settings.slashCommands.getOrPut(guildId) { mutableMapOf() }[definition.name] =
+            PushedSlashCommand(id, definition.hash)
+        updateSettings()
+    }
+
+    @Synchronized
+    private fun forgetPushed(guildId: Long, name: String) {
+        settings.slashCommands[guildId]?.remove(name)
+        updateSettings()
+    }
+}
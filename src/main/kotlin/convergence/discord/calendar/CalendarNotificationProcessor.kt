@@ -118,7 +118,7 @@ object CalendarNotificationProcessor {
         val notifyAtOffset = notifyAt.atOffset(defaultZoneOffset)
         val eventStartOffset = eventStart.atOffset(defaultZoneOffset)
         notificationLogger.info("Scheduled mention of $eventSummary in ${formatTime(eventStartOffset)} mentioning $mentionUserIds")
-        Scheduler.taskList.add(
+        Scheduler.schedule(
             ScheduledTask(notifyAtOffset) {
                 sendNotification(
                     channelId = channelId,
@@ -150,6 +150,6 @@ object CalendarNotificationProcessor {
                 "\n$description"
             } else ""
 
-        sendMessage(chat, message)
+        sendMessage(chat, message, SendPriority.NOTIFICATION)
     }
 }
@@ -25,6 +25,7 @@ import org.apache.http.impl.client.HttpClients
 import org.apache.http.message.BasicHeader
 import org.apache.jackrabbit.webdav.property.DavPropertyName
 import org.apache.jackrabbit.webdav.property.DavPropertyNameSet
+import java.time.Duration
 import java.time.Instant
 import java.time.OffsetDateTime
 import java.time.ZoneOffset
@@ -403,12 +404,31 @@ object CalendarProcessor {
     }
 
     fun onUpdate() {
-        if ((lastCalendarUpdateTime + calendarUpdateFrequency).isBefore(Instant.now())) {
+        if (!(lastCalendarUpdateTime + calendarUpdateFrequency).isAfter(Instant.now())) {
             syncAllCalendars()
             scheduleAllNotifications()
         }
     }
 
+    /**
+     * Runs [onUpdate] whenever the calendars are due to be synced, checking again afterward in case they were synced
+     * by a command in the meantime. It's scheduled again even if syncing fails, so one bad CalDAV request doesn't stop
+     * syncing until the next restart.
+     */
+    fun scheduleUpdates() {
+        // If it failed before the update time was moved forward, wait a full period instead of retrying right away.
+        val next = (lastCalendarUpdateTime + calendarUpdateFrequency).let {
+            if (it.isAfter(Instant.now())) it else Instant.now() + calendarUpdateFrequency
+        }
+        Scheduler.schedule(ScheduledTask(next.toOffsetDateTime()) {
+            try {
+                onUpdate()
+            } finally {
+                scheduleUpdates()
+            }
+        })
+    }
+
     /**
      * Schedules notifications for all registered notification channels, independent of Discord sync.
      * This ensures notifications work even for calendars not synced to Discord events.
@@ -451,6 +471,10 @@ fun Instant.toIDate(): DateTime {
     return DateTime(Date.from(this))
 }
 
+// Syncing talks to outside CalDAV servers, which can hang, so cap how long it can take and how many can run at once.
+private val calendarSyncTimeout = Duration.ofMinutes(5)
+private val calendarSyncBulkhead = Bulkhead("calendar sync", 2)
+
 @SuppressWarnings("LongMethod")
 fun registerCalendarCommands() {
     registerCommand(
@@ -461,7 +485,7 @@ fun registerCalendarCommands() {
             CalendarProcessor::syncCommand,
             "Sync a CalDAV calendar to discord events.",
             "syncCalendar (URL)"
-        )
+        ).withLimits(calendarSyncTimeout, calendarSyncBulkhead)
     )
     registerCommand(
         Command.of(
@@ -471,7 +495,7 @@ fun registerCalendarCommands() {
             { _, chat -> CalendarProcessor.syncCalendars(chat as DiscordChat) },
             "Resyncs all calendars in this server.",
             "resyncCalendar (Takes no parameters)"
-        )
+        ).withLimits(calendarSyncTimeout, calendarSyncBulkhead)
     )
     registerCommand(
         Command.of(
@@ -481,7 +505,7 @@ fun registerCalendarCommands() {
             { _, chat -> CalendarProcessor.syncCalendars(chat as DiscordChat, true) },
             "Tries to resyncs all calendars in this server, but does not actually add or remove anything.",
             "dryResyncCalendar (Takes no parameters)"
-        )
+        ).withLimits(calendarSyncTimeout, calendarSyncBulkhead)
     )
     registerCommand(
         Command.of(
@@ -491,7 +515,7 @@ fun registerCalendarCommands() {
             { _, chat -> CalendarProcessor.syncAllCalendars(chat as DiscordChat) },
             "Resyncs all calendars in all servers.",
             "resyncAllCalendars (Takes no parameters)"
-        )
+        ).withLimits(calendarSyncTimeout, calendarSyncBulkhead)
     )
     registerCommand(
         Command.of(
@@ -501,7 +525,7 @@ fun registerCalendarCommands() {
             { _, chat -> CalendarProcessor.syncAllCalendars(chat as DiscordChat, true) },
             "Tries to resync all calendars in all servers, but does not actually add or remove anything.",
             "dryResyncAllCalendars (Takes no parameters)"
-        )
+        ).withLimits(calendarSyncTimeout, calendarSyncBulkhead)
     )
     registerCommand(
         Command.of(
@@ -584,7 +608,7 @@ fun registerCalendarCommands() {
             },
             "Manually syncs calendar notifications.",
             "syncCalendarNotifications (Takes no arguments)"
-        )
+        ).withLimits(calendarSyncTimeout, calendarSyncBulkhead)
     )
 }
 
@@ -15,8 +15,10 @@ import net.dv8tion.jda.api.utils.FileUpload
 import net.dv8tion.jda.api.utils.messages.MessageCreateBuilder
 import java.io.ByteArrayOutputStream
 import java.nio.file.Files
+import java.time.Duration
 import java.time.LocalTime
 import java.time.OffsetDateTime
+import java.util.concurrent.ConcurrentHashMap
 
 val englishToGreek = mapOf(
     'A' to 'Α',
@@ -241,6 +243,10 @@ val isNotPledge: (List<String>, Chat, User) -> OutgoingMessage? =
         }
     }
 
+// Rendering the family tree and fetching the roster are slow, so don't let a burst of them tie up every command thread.
+private val familyTreeTimeout = Duration.ofMinutes(2)
+private val familyTreeBulkhead = Bulkhead("family tree", 2)
+
 @Suppress("LongMethod", "unused")
 fun registerFratCommands() {
     val config = fratConfig
@@ -291,7 +297,7 @@ fun registerFratCommands() {
             "Gets information about a particular brother's line going down.",
             "brotherLine (name)",
             isNotPledge
-        )
+        ).withLimits(familyTreeTimeout, familyTreeBulkhead)
     )
     registerCommand(
         Command(
@@ -302,7 +308,7 @@ fun registerFratCommands() {
             "Gets information about a particular brother's line going up.",
             "brotherBigs (name)",
             isNotPledge
-        )
+        ).withLimits(familyTreeTimeout, familyTreeBulkhead)
     )
     registerCommand(
         Command(
@@ -313,7 +319,7 @@ fun registerFratCommands() {
             "Gets information about a particular brother's line going up and down.",
             "fullLine (name)",
             isNotPledge
-        )
+        ).withLimits(familyTreeTimeout, familyTreeBulkhead)
     )
     registerCommand(
         Command(
@@ -324,7 +330,7 @@ fun registerFratCommands() {
             "Shows the full tree, with a particular brother's line going up and down highlighted.",
             "fullTree (name)",
             isNotPledge
-        )
+        ).withLimits(familyTreeTimeout, familyTreeBulkhead)
     )
     registerCommand(
         Command.of(
@@ -340,7 +346,7 @@ fun registerFratCommands() {
             },
             "Updates the brother roster list.",
             "updateRoster (takes no arguments)"
-        )
+        ).withLimits(familyTreeTimeout, familyTreeBulkhead)
     )
     registerCommand(
         Command.of(
@@ -352,9 +358,10 @@ fun registerFratCommands() {
                 val target = getUserFromName(chat, name)
                     ?: return@fct "No user found with name \"$name\"."
                 settings.mentionChats
-                    .getOrPut(chat) { mutableMapOf() }
-                    .putIfAbsent(target, mutableMapOf())
+                    .getOrPut(chat) { ConcurrentHashMap() }
+                    .putIfAbsent(target, ConcurrentHashMap())
                 updateSettings()
+                updateEventSubscriptions()
                 "Chat registered to mention ${getUserName(chat, target)}."
             },
             "Registers this chat with the given user as a mention chat.",
@@ -372,6 +379,7 @@ fun registerFratCommands() {
                     .getOrDefault(chat, mutableMapOf())
                     .clear()
                 updateSettings()
+                updateEventSubscriptions()
                 "Mention users cleared from this chat."
             },
             "Removes all mention users from this chat.",
@@ -403,11 +411,14 @@ fun registerFratCommands() {
         )
     )
     registerMentionCallback()
-    Scheduler.taskList.add(ScheduledTask(nextMonth(), ::mentionStatsFct))
+    Scheduler.schedule(ScheduledTask(nextMonth(), ::mentionStatsFct))
 }
 
+private var mentionSubscription: EventDispatcher<MentionedUser>.Subscription? = null
+
+// Only listens in mention chats, so messages anywhere else don't get their mentions looked up.
 private fun registerMentionCallback() {
-    callbacks.getOrPut(MentionedUser::class) { mutableListOf() }.add(
+    mentionSubscription = MentionedUser.subscribeAsync(
         MentionedUser { chat: Chat, msg: IncomingMessage, sender: User, users: List<User> ->
             if (msg is DiscordIncomingMessage) {
                 if (sender !is DiscordUser)
@@ -416,8 +427,7 @@ private fun registerMentionCallback() {
                 for (user in users) {
                     user as? DiscordUser ?: continue
                     val mentions = (settings.mentionChats[chat] ?: return@MentionedUser true)[user] ?: return@MentionedUser true
-                    val mentionCount = mentions.getOrDefault(sender, 0) + 1
-                    mentions[sender] = mentionCount
+                    val mentionCount = mentions.merge(sender, 1) { old, one -> old + one }!!
                     newMentions[user] = mentionCount
                 }
                 updateSettings()
@@ -434,8 +444,13 @@ private fun registerMentionCallback() {
                 }
             }
             true
-        }
+        },
+        listOf()
     )
+    addSubscriptionUpdater {
+        mentionSubscription?.scopes =
+            settings.mentionChats.filterValues { it.isNotEmpty() }.keys.map { EventScope.of(it) }
+    }
 }
 
 private fun nextMonth(): OffsetDateTime {
@@ -454,14 +469,14 @@ private fun nextMonth(): OffsetDateTime {
 
 private fun mentionStatsFct() {
     for ((chat, _) in settings.mentionChats) {
-        sendMessage(chat, "Monthly mention stats:\n${mentionStats(chat)}")
+        sendMessage(chat, "Monthly mention stats:\n${mentionStats(chat)}", SendPriority.NOTIFICATION)
     }
     for ((_, stats) in settings.mentionChats)
         for ((_, mentioners) in stats)
             mentioners.clear()
     updateSettings()
     // Schedule it again for next month
-    Scheduler.taskList.add(ScheduledTask(nextMonth(), ::mentionStatsFct))
+    Scheduler.schedule(ScheduledTask(nextMonth(), ::mentionStatsFct))
 }
 
 fun mentionStats(chat: Chat) = settings.mentionChats
@@ -0,0 +1,132 @@
+import convergence.*
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.IOException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+
+class AttachmentCacheTest {
+    private val defaultMaxBytes = settings.attachmentCacheMaxBytes
+    private val defaultMemoryLimit = settings.attachmentMemoryLimitBytes
+    private val downloads = AtomicInteger()
+
+    @Before
+    fun setup() = resetGlobalState()
+
+    @After
+    fun teardown() {
+        settings.attachmentCacheMaxBytes = defaultMaxBytes
+        settings.attachmentMemoryLimitBytes = defaultMemoryLimit
+        resetGlobalState()
+    }
+
+    private fun download(bytes: ByteArray) = {
+        downloads.incrementAndGet()
+        ByteArrayInputStream(bytes)
+    }
+
+    private fun read(key: String, bytes: ByteArray) = AttachmentCache.open(key, download(bytes)).use { it.readAllBytes() }
+
+    @Test
+    fun attachmentsAreOnlyDownloadedOnce() {
+        val bytes = "an image".toByteArray()
+        repeat(3) { assertContentEquals(bytes, read("Test:1", bytes)) }
+        assertEquals(1, downloads.get())
+        assertEquals(1, AttachmentCache.misses)
+        assertEquals(2, AttachmentCache.hits)
+        assertEquals(bytes.size.toLong(), AttachmentCache.bytesDownloaded)
+    }
+
+    @Test
+    fun bigAttachmentsAreSpooledToDisk() {
+        settings.attachmentMemoryLimitBytes = 100
+        val bytes = ByteArray(20_000) { it.toByte() }
+        assertContentEquals(bytes, read("Test:big", bytes))
+        assertContentEquals(bytes, read("Test:big", bytes))
+        assertEquals(1, downloads.get())
+        assertEquals(bytes.size.toLong(), AttachmentCache.size)
+    }
+
+    @Test
+    fun leastRecentlyUsedAttachmentsAreEvicted() {
+        settings.attachmentCacheMaxBytes = 250
+        val bytes = ByteArray(100)
+        read("Test:a", bytes)
+        read("Test:b", bytes)
+        read("Test:a", bytes)
+        read("Test:c", bytes)
+        assertEquals(3, downloads.get())
+        assertEquals(200, AttachmentCache.size)
+        read("Test:a", bytes)
+        assertEquals(3, downloads.get())
+        read("Test:b", bytes)
+        assertEquals(4, downloads.get())
+    }
+
+    @Test
+    fun attachmentsBiggerThanTheCacheAreStillServed() {
+        settings.attachmentCacheMaxBytes = 10
+        settings.attachmentMemoryLimitBytes = 10
+        val bytes = ByteArray(1000) { 7 }
+        assertContentEquals(bytes, read("Test:huge", bytes))
+        assertEquals(1000, AttachmentCache.size)
+    }
+
+    @Test
+    fun concurrentRequestsShareOneDownload() {
+        val started = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val bytes = "shared".toByteArray()
+        val pool = Executors.newFixedThreadPool(4)
+        try {
+            val first = pool.submit<ByteArray> {
+                AttachmentCache.open("Test:shared") {
+                    downloads.incrementAndGet()
+                    started.countDown()
+                    release.await()
+                    ByteArrayInputStream(bytes)
+                }.use { it.readAllBytes() }
+            }
+            started.await()
+            val others = (1..3).map { pool.submit<ByteArray> { read("Test:shared", bytes) } }
+            Thread.sleep(50)
+            release.countDown()
+            assertContentEquals(bytes, first.get(5, TimeUnit.SECONDS))
+            others.forEach { assertContentEquals(bytes, it.get(5, TimeUnit.SECONDS)) }
+            assertEquals(1, downloads.get())
+        } finally {
+            pool.shutdownNow()
+        }
+    }
+
+    @Test
+    fun spooledAttachmentsCanBeReadWhileOthersEvictThem() {
+        settings.attachmentMemoryLimitBytes = 10
+        settings.attachmentCacheMaxBytes = 1500
+        val files = (0 until 4).map { i -> ByteArray(1000) { i.toByte() } }
+        val pool = Executors.newFixedThreadPool(8)
+        try {
+            val reads = (0 until 400).map { n ->
+                pool.submit<Unit> { assertContentEquals(files[n % 4], read("Test:spooled${n % 4}", files[n % 4])) }
+            }
+            // Any of these would throw if a file was deleted between finding its entry and opening it.
+            reads.forEach { it.get(10, TimeUnit.SECONDS) }
+        } finally {
+            pool.shutdownNow()
+        }
+    }
+
+    @Test
+    fun failedDownloadsAreNotCached() {
+        assertFailsWith<IOException> { AttachmentCache.open("Test:broken") { throw IOException("Not found") } }
+        val bytes = "fixed".toByteArray()
+        assertContentEquals(bytes, read("Test:broken", bytes))
+    }
+}
@@ -0,0 +1,62 @@
+import convergence.*
+import org.junit.After
+import org.junit.Before
+import kotlin.test.Test
+import kotlin.test.assertEquals
+
+/**
+ * Rough before/after timings for the hot paths. These only log their numbers; they don't fail on slow machines.
+ */
+class BenchmarkTest {
+    @Before
+    fun setUp() = resetGlobalState()
+
+    @After
+    fun tearDown() = resetGlobalState()
+
+    private inline fun benchmark(name: String, iterations: Int = 20_000, block: () -> Any?): Double {
+        repeat(iterations) { block() }
+        val start = System.nanoTime()
+        repeat(iterations) { block() }
+        val nsPerOp = (System.nanoTime() - start).toDouble() / iterations
+        defaultLogger.info("Benchmark $name: ${"%.1f".format(nsPerOp)} ns/op")
+        return nsPerOp
+    }
+
+    @Test
+    fun plainCommandTokenizing() {
+        val input = "echo some plain words to echo back"
+        assertEquals(tokenizeWithGrammar(input, input, "bench"), tokenizePlainCommand(input))
+        val grammar = benchmark("tokenizeWithGrammar") { tokenizeWithGrammar(input, input, "bench") }
+        val plain = benchmark("tokenizePlainCommand") { tokenizePlainCommand(input) }
+        defaultLogger.info("Plain command fast path speedup: ${"%.1f".format(grammar / plain)}x")
+    }
+
+    @Test
+    fun quotedCommandParsing() {
+        val input = "echo \"some quoted words\" and \\t an escape"
+        warmUpCommandParser()
+        benchmark("tokenizeWithGrammar (quoted)") { tokenizeWithGrammar(input, input, "bench") }
+    }
+
+    @Test
+    fun aliasArgs() {
+        val command = Command.of(UniversalProtocol, "echo", listOf(), { args: List<String> -> args.joinToString() }, "", "")
+        val alias = Alias(UniversalChat, "greet", command, listOf("hello", "there", "everyone"))
+        val extraArgs = listOf("and", "welcome")
+        assertEquals(alias.args + extraArgs, CommandWithArgs(alias, extraArgs).args)
+        val copied = benchmark("alias args (copied)") {
+            CommandWithArgs(alias.command, alias.args + extraArgs).args.sumOf { it.length }
+        }
+        val view = benchmark("alias args (view)") { CommandWithArgs(alias, extraArgs).args.sumOf { it.length } }
+        defaultLogger.info("Alias args view speedup: ${"%.1f".format(copied / view)}x")
+    }
+
+    @Test
+    fun aliasVarReplacement() {
+        val plain = SimpleOutgoingMessage("A command's output, usually without any alias vars in it at all.")
+        val withVars = SimpleOutgoingMessage("Hello %chatname, this is %botname speaking.")
+        benchmark("replaceAliasVars (no vars)") { replaceAliasVars(UniversalChat, plain, UniversalUser) }
+        benchmark("replaceAliasVars (vars)") { replaceAliasVars(UniversalChat, withVars, UniversalUser) }
+    }
+}
@@ -0,0 +1,317 @@
+import convergence.*
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.net.URI
+import java.util.Collections
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+/**
+ * A protocol that keeps everything sent through it, and can be made to hold sends in the background until [gate] opens,
+ * like JDA does while a channel is rate limited.
+ */
+private open class RecordingProtocol(name: String, val gate: CountDownLatch = CountDownLatch(0)): Protocol(name) {
+    val sent: MutableList<Pair<Chat, String>> = Collections.synchronizedList(mutableListOf())
+    val nameLookups = AtomicInteger()
+    val user = object: User(this) {
+        override fun toKey() = "RecordingUser"
+    }
+
+    fun chat(name: String) = object: Chat(this, name) {
+        override fun toKey() = "RecordingChat($name)"
+    }
+
+    override fun init() {}
+    override fun configLoaded() {}
+    override fun aliasCreated(alias: Alias) {}
+    override fun sendMessage(chat: Chat, message: OutgoingMessage): Boolean {
+        gate.await()
+        sent.add(chat to message.toSimple().text)
+        return true
+    }
+
+    override fun sendMessageAsync(chat: Chat, message: OutgoingMessage): CompletableFuture<Boolean> =
+        if (gate.count == 0L)
+            super.sendMessageAsync(chat, message)
+        else
+            CompletableFuture.supplyAsync { sendMessage(chat, message) }
+
+    override fun getChats(): List<Chat> = listOf()
+    override fun getBot(chat: Chat): User = UniversalUser
+    override fun getUsers(): List<User> = listOf()
+    override fun getUsers(chat: Chat): List<User> = listOf()
+    override fun getUserName(chat: Chat, user: User) = "alice".also { nameLookups.incrementAndGet() }
+    override fun getChatName(chat: Chat) = chat.name
+    override fun commandScopeFromKey(key: String): CommandScope? = null
+    override fun userFromKey(key: String): User? = null
+}
+
+private class FormattingProtocol(name: String): RecordingProtocol(name), CanFormatMessages {
+    override val supportedFormats = setOf(Format.bold)
+    override fun getDelimiters(format: Format) = "**" to "**"
+}
+
+private class LimitedProtocol(name: String, override val maxMessageLength: Int): RecordingProtocol(name),
+    HasMessageLengthLimit
+
+private class ImageProtocol(name: String): RecordingProtocol(name), HasImages {
+    override fun sendImages(chat: Chat, message: OutgoingMessage, sender: User, vararg images: Image) {
+        sent.add(chat to message.toSimple().text)
+    }
+}
+
+private object NoImage: Image() {
+    override fun getURL() = URI("http://example.com/image.png")
+    override fun getStream() = ByteArrayInputStream(byteArrayOf())
+}
+
+class BridgeTest {
+    private val defaultWindow = settings.bridgeCoalesceWindowMs
+    private val defaultEchoTtl = settings.bridgeEchoTtlSeconds
+
+    @Before
+    fun setup() = resetGlobalState()
+
+    @After
+    fun teardown() {
+        settings.bridgeCoalesceWindowMs = defaultWindow
+        settings.bridgeEchoTtlSeconds = defaultEchoTtl
+        resetGlobalState()
+    }
+
+    private fun awaitSent(protocol: RecordingProtocol, count: Int) {
+        val deadline = System.currentTimeMillis() + 5000
+        while (protocol.sent.size < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(5)
+        assertEquals(count, protocol.sent.size)
+    }
+
+    @Test
+    fun forwardsToEveryLinkedChatWithOneNameLookup() {
+        val source = RecordingProtocol("BridgeSource")
+        val destination = RecordingProtocol("BridgeDestination")
+        val chats = (1..3).map { destination.chat("dest$it") }
+        val sourceChat = source.chat("src")
+        settings.linkedChats[sourceChat] = chats.toMutableSet()
+
+        forwardToLinkedChats(sourceChat, SimpleOutgoingMessage("hi"), source.user)
+        awaitSent(destination, 3)
+        assertEquals(chats.toSet(), destination.sent.map { it.first }.toSet())
+        assertTrue(destination.sent.all { it.second == "alice: hi" })
+        assertEquals(1, source.nameLookups.get())
+    }
+
+    @Test
+    fun formatsWithTheDestinationsDelimiters() {
+        val source = FormattingProtocol("BridgeFormattedSource")
+        val plain = RecordingProtocol("BridgePlain")
+        val formatted = FormattingProtocol("BridgeFormatted")
+        val sourceChat = source.chat("src")
+        settings.linkedChats[sourceChat] = mutableSetOf(plain.chat("plain"), formatted.chat("formatted"))
+
+        forwardToLinkedChats(sourceChat, SimpleOutgoingMessage("hi"), source.user)
+        awaitSent(plain, 1)
+        awaitSent(formatted, 1)
+        assertEquals("alice: hi", plain.sent.single().second)
+        assertEquals("**alice:** hi", formatted.sent.single().second)
+    }
+
+    @Test
+    fun slowDestinationDoesNotHoldUpOthers() {
+        settings.bridgeCoalesceWindowMs = 0
+        val source = RecordingProtocol("BridgeSlowSource")
+        val gate = CountDownLatch(1)
+        val slow = RecordingProtocol("BridgeSlow", gate)
+        val fast = RecordingProtocol("BridgeFast")
+        val sourceChat = source.chat("src")
+        settings.linkedChats[sourceChat] = mutableSetOf(slow.chat("slow"), fast.chat("fast"))
+
+        forwardToLinkedChats(sourceChat, SimpleOutgoingMessage("one"), source.user)
+        forwardToLinkedChats(sourceChat, SimpleOutgoingMessage("two"), source.user)
+        awaitSent(fast, 2)
+        assertEquals(listOf("alice: one", "alice: two"), fast.sent.map { it.second })
+        assertEquals(0, slow.sent.size)
+
+        gate.countDown()
+        awaitSent(slow, 2)
+        assertEquals(listOf("alice: one", "alice: two"), slow.sent.map { it.second })
+    }
+
+    @Test
+    fun recordsLatencyPerDestination() {
+        val source = RecordingProtocol("BridgeLatencySource")
+        val destination = RecordingProtocol("BridgeLatencyDestination")
+        val chat = destination.chat("dest")
+        val sourceChat = source.chat("src")
+        settings.linkedChats[sourceChat] = mutableSetOf(chat)
+
+        forwardToLinkedChats(sourceChat, SimpleOutgoingMessage("hi"), source.user)
+        awaitSent(destination, 1)
+        val deadline = System.currentTimeMillis() + 5000
+        while ((Bridge.latencies()[chat]?.count ?: 0L) == 0L && System.currentTimeMillis() < deadline)
+            Thread.sleep(5)
+        assertEquals(1, Bridge.latencies()[chat]?.count)
+    }
+
+    @Test
+    fun botMessagesAreNotForwardedUnlessTheyAreCommandReplies() {
+        val source = RecordingProtocol("BridgeBotSource")
+        val destination = RecordingProtocol("BridgeBotDestination")
+        val sourceChat = source.chat("src")
+        settings.linkedChats[sourceChat] = mutableSetOf(destination.chat("dest"))
+
+        forwardToLinkedChats(sourceChat, SimpleOutgoingMessage("ignored"), UniversalUser)
+        forwardToLinkedChats(sourceChat, SimpleOutgoingMessage("reply"), UniversalUser, isCommand = true)
+        awaitSent(destination, 1)
+        assertEquals("alice: reply", destination.sent.single().second)
+    }
+
+    // ─── Coalescing ─────────────────────────────────────────────────────────
+
+    @Test
+    fun burstsToOneChatAreSentAsOneMessage() {
+        settings.bridgeCoalesceWindowMs = 200
+        val source = RecordingProtocol("BridgeBurstSource")
+        val destination = RecordingProtocol("BridgeBurstDestination")
+        val sourceChat = source.chat("src")
+        val destinationChat = destination.chat("dest")
+        settings.linkedChats[sourceChat] = mutableSetOf(destinationChat)
+
+        (1..5).forEach { forwardToLinkedChats(sourceChat, SimpleOutgoingMessage("msg $it"), source.user) }
+        awaitSent(destination, 1)
+        assertEquals((1..5).joinToString("\n") { "alice: msg $it" }, destination.sent.single().second)
+        val deadline = System.currentTimeMillis() + 5000
+        while ((Bridge.latencies()[destinationChat]?.count ?: 0) < 5 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5)
+        assertEquals(5, Bridge.latencies()[destinationChat]?.count)
+    }
+
+    @Test
+    fun coalescedMessagesAreSplitAtTheLengthLimit() {
+        settings.bridgeCoalesceWindowMs = 200
+        val source = RecordingProtocol("BridgeSplitSource")
+        val destination = LimitedProtocol("BridgeSplitDestination", 21)
+        val sourceChat = source.chat("src")
+        settings.linkedChats[sourceChat] = mutableSetOf(destination.chat("dest"))
+
+        listOf("aaa", "bbb", "ccc").forEach { forwardToLinkedChats(sourceChat, SimpleOutgoingMessage(it), source.user) }
+        awaitSent(destination, 2)
+        assertEquals(listOf("alice: aaa\nalice: bbb", "alice: ccc"), destination.sent.map { it.second })
+    }
+
+    @Test
+    fun anOldTimerDoesNotSendANewerBatchEarly() {
+        settings.bridgeCoalesceWindowMs = 400
+        val source = RecordingProtocol("BridgeTimerSource")
+        val destination = ImageProtocol("BridgeTimerDestination")
+        val sourceChat = source.chat("src")
+        settings.linkedChats[sourceChat] = mutableSetOf(destination.chat("dest"))
+
+        forwardToLinkedChats(sourceChat, SimpleOutgoingMessage("one"), source.user)
+        // The image sends the first batch right away, but its timer is still going.
+        forwardToLinkedChats(sourceChat, SimpleOutgoingMessage("two"), source.user, arrayOf(NoImage))
+        awaitSent(destination, 2)
+        Thread.sleep(200)
+        forwardToLinkedChats(sourceChat, SimpleOutgoingMessage("three"), source.user)
+        // The first batch's timer goes off in here, and shouldn't send "three" yet.
+        Thread.sleep(300)
+        assertEquals(listOf("alice: one", "alice: two"), destination.sent.map { it.second })
+        awaitSent(destination, 3)
+        assertEquals("alice: three", destination.sent.last().second)
+    }
+
+    @Test
+    fun joinLinesPacksAsManyLinesAsFit() {
+        assertEquals(listOf("a\nb\nc"), Bridge.joinLines(listOf("a", "b", "c"), null))
+        assertEquals(listOf("a\nb", "c"), Bridge.joinLines(listOf("a", "b", "c"), 3))
+        assertEquals(listOf("a", "toolong", "b"), Bridge.joinLines(listOf("a", "toolong", "b"), 3))
+        assertEquals(listOf(), Bridge.joinLines(listOf(), 3))
+    }
+
+    // ─── Echo suppression ───────────────────────────────────────────────────
+
+    @Test
+    fun echoesComingBackThroughATwoWayLinkAreNotForwarded() {
+        settings.bridgeCoalesceWindowMs = 0
+        val first = RecordingProtocol("BridgeEchoFirst")
+        val second = RecordingProtocol("BridgeEchoSecond")
+        val firstChat = first.chat("first")
+        val secondChat = second.chat("second")
+        settings.linkedChats[firstChat] = mutableSetOf(secondChat)
+        settings.linkedChats[secondChat] = mutableSetOf(firstChat)
+
+        forwardToLinkedChats(firstChat, SimpleOutgoingMessage("hi"), first.user)
+        awaitSent(second, 1)
+        // Another bridge relays the copy back in, from a user that isn't our bot.
+        forwardToLinkedChats(secondChat, SimpleOutgoingMessage(second.sent.single().second), second.user)
+        forwardToLinkedChats(secondChat, SimpleOutgoingMessage("hi back"), second.user)
+        awaitSent(first, 1)
+        assertEquals("alice: hi back", first.sent.single().second)
+        assertEquals(1, Bridge.echoesDropped)
+    }
+
+    @Test
+    fun coalescedEchoesAreRecognized() {
+        settings.bridgeCoalesceWindowMs = 200
+        val source = RecordingProtocol("BridgeCoalescedEchoSource")
+        val destination = RecordingProtocol("BridgeCoalescedEchoDestination")
+        val sourceChat = source.chat("src")
+        val destinationChat = destination.chat("dest")
+        settings.linkedChats[sourceChat] = mutableSetOf(destinationChat)
+
+        listOf("one\ntwo", "three").forEach {
+            forwardToLinkedChats(sourceChat, SimpleOutgoingMessage(it), source.user)
+        }
+        awaitSent(destination, 1)
+        val sent = destination.sent.single().second
+        assertEquals("alice: one\ntwo\nalice: three", sent)
+        val links = listOf(sourceChat)
+        assertTrue(Bridge.isEcho(destinationChat, links, SimpleOutgoingMessage(sent)))
+        assertTrue(Bridge.isEcho(destinationChat, links, SimpleOutgoingMessage("alice: three")))
+        assertFalse(Bridge.isEcho(destinationChat, links, SimpleOutgoingMessage("two")))
+        assertFalse(Bridge.isEcho(destinationChat, links, SimpleOutgoingMessage("$sent\nsomething new")))
+        assertTrue(Bridge.isEcho(sourceChat, listOf(destinationChat), SimpleOutgoingMessage(sent)))
+        // Somewhere the message didn't come from or link to isn't getting an echo.
+        val elsewhere = destination.chat("elsewhere")
+        assertFalse(Bridge.isEcho(elsewhere, listOf(destinationChat), SimpleOutgoingMessage(sent)))
+    }
+
+    @Test
+    fun fingerprintsExpire() {
+        settings.bridgeCoalesceWindowMs = 0
+        settings.bridgeEchoTtlSeconds = 0
+        val source = RecordingProtocol("BridgeExpirySource")
+        val destination = RecordingProtocol("BridgeExpiryDestination")
+        val sourceChat = source.chat("src")
+        val destinationChat = destination.chat("dest")
+        settings.linkedChats[sourceChat] = mutableSetOf(destinationChat)
+
+        forwardToLinkedChats(sourceChat, SimpleOutgoingMessage("hi"), source.user)
+        awaitSent(destination, 1)
+        assertFalse(Bridge.isEcho(destinationChat, listOf(sourceChat), SimpleOutgoingMessage("alice: hi")))
+    }
+
+    @Test
+    fun peopleSayingWhatWasBridgedAreStillForwarded() {
+        settings.bridgeCoalesceWindowMs = 0
+        val first = RecordingProtocol("BridgeRepeatFirst")
+        val second = RecordingProtocol("BridgeRepeatSecond")
+        val firstChat = first.chat("first")
+        val secondChat = second.chat("second")
+        settings.linkedChats[firstChat] = mutableSetOf(secondChat)
+        settings.linkedChats[secondChat] = mutableSetOf(firstChat)
+
+        forwardToLinkedChats(firstChat, SimpleOutgoingMessage("hi"), first.user)
+        awaitSent(second, 1)
+        forwardToLinkedChats(secondChat, SimpleOutgoingMessage("hi"), second.user)
+        awaitSent(first, 1)
+        assertEquals(0, Bridge.echoesDropped)
+    }
+}
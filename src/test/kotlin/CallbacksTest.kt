@@ -1,10 +1,39 @@
 import convergence.*
 import org.junit.Test
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
 import kotlin.test.assertEquals
 import kotlin.test.assertFailsWith
 import kotlin.test.assertFalse
+import kotlin.test.assertNotEquals
 import kotlin.test.assertTrue
 
+/** An event only these tests dispatch, so listeners from other tests don't get in the way. */
+private class TestEvent(val fct: (String) -> Boolean): ChatEvent {
+    override fun invoke(vararg args: Any) = invokeTyped(fct, args)
+    fun invoke(text: String) = fct(text)
+
+    companion object: EventDispatcher<TestEvent>(TestEvent::class)
+}
+
+private class RoutedEvent(val fct: (String) -> Boolean): ChatEvent {
+    override fun invoke(vararg args: Any) = invokeTyped(fct, args)
+    fun invoke(text: String) = fct(text)
+
+    companion object: EventDispatcher<RoutedEvent>(RoutedEvent::class)
+}
+
+private class RoutingServer(name: String): Server(name, UniversalProtocol) {
+    override fun compareTo(other: Server) = name.compareTo(other.name)
+    override fun toKey() = "RoutingServer($name)"
+}
+
+private class RoutingChat(name: String, override val server: RoutingServer): Chat(UniversalProtocol, name),
+    HasServer<RoutingServer> {
+    override fun toKey() = "RoutingChat($name)"
+}
+
 class CallbacksTest {
 
     // ─── registerCallback ───────────────────────────────────────────────────
@@ -220,4 +249,217 @@ class CallbacksTest {
         val fct: (Int, Int, Int, Int, Int, Int) -> Boolean = { a, b, c, d, e, f -> a + b + c + d + e + f == 21 }
         assertTrue(invokeTyped(fct, arrayOf<Any>(1, 2, 3, 4, 5, 6, 99, 100)))
     }
+
+    // ─── EventDispatcher ────────────────────────────────────────────────────
+
+    @Test
+    fun dispatchCallsListenersInOrder() {
+        val calls = mutableListOf<String>()
+        TestEvent.add(TestEvent { calls.add("first $it"); false })
+        TestEvent.add(TestEvent { calls.add("second $it"); true })
+        assertTrue(TestEvent.dispatch { it("order") })
+        assertEquals(listOf("first order", "second order"), calls.filter { it.endsWith("order") })
+    }
+
+    @Test
+    fun dispatchReportsWhetherAnyListenerHandledTheEvent() {
+        val handler = TestEvent { it == "handled" }
+        TestEvent.add(handler)
+        assertTrue(TestEvent.dispatch { it === handler && it("handled") })
+        assertFalse(TestEvent.dispatch { it === handler && it("ignored") })
+    }
+
+    @Test
+    fun throwingListenerDoesNotStopTheRest() {
+        var called = false
+        TestEvent.add(TestEvent { if (it == "throw") error("Broken listener") else false })
+        TestEvent.add(TestEvent { if (it == "throw") called = true; false })
+        TestEvent.dispatch { it("throw") }
+        assertTrue(called)
+    }
+
+    @Test
+    fun dispatchRecordsEachListenersLatency() {
+        TestEvent.add(TestEvent { false })
+        val listener = TestEvent.listeners.last()
+        val before = listener.latency.count
+        TestEvent.dispatch { it("timed") }
+        assertEquals(before + 1, listener.latency.count)
+        assertTrue(TestEvent in EventDispatcher.all())
+    }
+
+    @Test
+    fun registerCallbackUsesTheEventsDispatcher() {
+        var text: String? = null
+        registerCallback(TestEvent { text = it; true })
+        TestEvent.dispatch { it("registered") }
+        assertEquals("registered", text)
+        assertEquals(TestEvent.listeners.size, callbacks[TestEvent::class]?.size)
+    }
+
+    @Test
+    fun receivedMessageGoesThroughItsDispatcher() {
+        var received: IncomingMessage? = null
+        ReceivedMessage.add(ReceivedMessage { _, message, _ -> received = message; false })
+        val message = SimpleIncomingMessage("not a command")
+        UniversalProtocol.receivedMessage(testChat, message, testUser)
+        assertEquals(message, received)
+    }
+
+    // ─── Asynchronous listeners ─────────────────────────────────────────────
+
+    @Test
+    fun asyncListenersRunOffTheDispatchingThread() {
+        val ran = CountDownLatch(1)
+        var thread: Thread? = null
+        TestEvent.addAsync(TestEvent { if (it == "async") { thread = Thread.currentThread(); ran.countDown() }; true })
+        TestEvent.dispatch { it("async") }
+        assertTrue(ran.await(5, TimeUnit.SECONDS))
+        assertNotEquals(Thread.currentThread(), thread)
+    }
+
+    private fun blockedExecutor(policy: OverflowPolicy, release: CountDownLatch): EventExecutor {
+        val started = CountDownLatch(1)
+        return EventExecutor("test-$policy", 1, 2, policy).apply {
+            execute {
+                started.countDown()
+                release.await()
+            }
+            started.await()
+        }
+    }
+
+    @Test
+    fun dropNewestDropsEventsPastCapacity() {
+        val release = CountDownLatch(1)
+        val executor = blockedExecutor(OverflowPolicy.DROP_NEWEST, release)
+        val ran = Collections.synchronizedList(mutableListOf<Int>())
+        (1..4).forEach { n -> executor.execute { ran.add(n) } }
+        assertEquals(2, executor.queueDepth)
+        assertEquals(2, executor.dropped)
+        release.countDown()
+        awaitSize(ran, 2)
+        assertEquals(listOf(1, 2), ran)
+    }
+
+    @Test
+    fun dropOldestKeepsTheNewestEvents() {
+        val release = CountDownLatch(1)
+        val executor = blockedExecutor(OverflowPolicy.DROP_OLDEST, release)
+        val ran = Collections.synchronizedList(mutableListOf<Int>())
+        (1..4).forEach { n -> executor.execute { ran.add(n) } }
+        assertEquals(2, executor.dropped)
+        release.countDown()
+        awaitSize(ran, 2)
+        assertEquals(listOf(3, 4), ran)
+    }
+
+    @Test
+    fun blockWaitsForRoom() {
+        val release = CountDownLatch(1)
+        val executor = blockedExecutor(OverflowPolicy.BLOCK, release)
+        val ran = Collections.synchronizedList(mutableListOf<Int>())
+        val firing = Thread { (1..3).forEach { n -> executor.execute { ran.add(n) } } }.apply { start() }
+        firing.join(200)
+        assertTrue(firing.isAlive, "The third event should be waiting for room.")
+        release.countDown()
+        firing.join(5000)
+        awaitSize(ran, 3)
+        assertEquals(listOf(1, 2, 3), ran)
+        assertEquals(0, executor.dropped)
+    }
+
+    private fun awaitSize(list: List<*>, size: Int) {
+        val deadline = System.currentTimeMillis() + 5000
+        while (list.size < size && System.currentTimeMillis() < deadline)
+            Thread.sleep(5)
+        Thread.sleep(20)
+        assertEquals(size, list.size)
+    }
+
+    // ─── Scoped subscriptions ───────────────────────────────────────────────
+
+    private val server = RoutingServer("server")
+    private val chat = RoutingChat("chat", server)
+    private val otherChat = RoutingChat("other", RoutingServer("other server"))
+
+    private fun subscribeRecorder(
+        scopes: List<EventScope>
+    ): Pair<MutableList<String>, EventDispatcher<RoutedEvent>.Subscription> {
+        val received = mutableListOf<String>()
+        return received to RoutedEvent.subscribe(RoutedEvent { received.add(it); true }, scopes)
+    }
+
+    @Test
+    fun chatSubscriptionsOnlyGetEventsInThatChat() {
+        val (received, _) = subscribeRecorder(listOf(EventScope.of(chat)))
+        assertTrue(RoutedEvent.dispatch(chat) { it("here") })
+        RoutedEvent.dispatch(otherChat) { it("elsewhere") }
+        assertEquals(listOf("here"), received)
+    }
+
+    @Test
+    fun serverSubscriptionsGetEventsInEveryChatInTheServer() {
+        val (received, _) = subscribeRecorder(listOf(EventScope.of(server)))
+        RoutedEvent.dispatch(RoutingChat("another chat", server)) { it("same server") }
+        RoutedEvent.dispatch(otherChat) { it("other server") }
+        assertEquals(listOf("same server"), received)
+    }
+
+    @Test
+    fun listenersSubscribedToAChatAndItsServerOnlyGetEachEventOnce() {
+        val (received, _) = subscribeRecorder(listOf(EventScope.of(chat), EventScope.of(server, "👍")))
+        RoutedEvent.dispatch(chat, "👍") { it("thumbs up") }
+        assertEquals(listOf("thumbs up"), received)
+    }
+
+    @Test
+    fun emojiSubscriptionsOnlyGetThatEmoji() {
+        val (thumbs, _) = subscribeRecorder(listOf(EventScope.of(chat, "👍")))
+        val (any, _) = subscribeRecorder(listOf(EventScope.of(chat)))
+        RoutedEvent.dispatch(chat, "👍") { it("thumbs up") }
+        RoutedEvent.dispatch(chat, "👎") { it("thumbs down") }
+        assertEquals(listOf("thumbs up"), thumbs)
+        assertEquals(listOf("thumbs up", "thumbs down"), any)
+    }
+
+    @Test
+    fun subscriptionScopesCanBeChanged() {
+        val (received, subscription) = subscribeRecorder(listOf(EventScope.of(chat)))
+        subscription.scopes = listOf(EventScope.of(otherChat))
+        RoutedEvent.dispatch(chat) { it("old scope") }
+        RoutedEvent.dispatch(otherChat) { it("new scope") }
+        assertEquals(listOf("new scope"), received)
+        subscription.scopes = listOf()
+    }
+
+    @Test
+    fun hasListenersOnlyCountsInterestedListeners() {
+        val lonelyChat = RoutingChat("lonely", RoutingServer("lonely server"))
+        assertFalse(RoutedEvent.hasListeners(lonelyChat, "👍"))
+        val (_, subscription) = subscribeRecorder(listOf(EventScope.of(lonelyChat.server, "👍")))
+        assertTrue(RoutedEvent.hasListeners(lonelyChat, "👍"))
+        assertFalse(RoutedEvent.hasListeners(lonelyChat, "👎"))
+        assertFalse(RoutedEvent.hasListeners(otherChat, "👍"))
+        subscription.scopes = listOf()
+        assertFalse(RoutedEvent.hasListeners(lonelyChat, "👍"))
+    }
+
+    @Test
+    fun hasListenersForAnyEmojiCountsEmojiSpecificListeners() {
+        val lonelyChat = RoutingChat("lonely", RoutingServer("lonely server"))
+        assertFalse(RoutedEvent.hasListenersForAnyEmoji(lonelyChat))
+        val (_, subscription) = subscribeRecorder(listOf(EventScope.of(lonelyChat.server, "👍")))
+        assertTrue(RoutedEvent.hasListenersForAnyEmoji(lonelyChat))
+        assertFalse(RoutedEvent.hasListenersForAnyEmoji(otherChat))
+        subscription.scopes = listOf()
+        assertFalse(RoutedEvent.hasListenersForAnyEmoji(lonelyChat))
+    }
+
+    @Test
+    fun subscribedListenersShowUpInCallbacks() {
+        val before = callbacks[RoutedEvent::class]?.size ?: 0
+        subscribeRecorder(listOf())
+        assertEquals(before + 1, callbacks[RoutedEvent::class]?.size)
+    }
 }
@@ -0,0 +1,89 @@
+import convergence.Chat
+import convergence.CommandExecutor
+import convergence.UniversalProtocol
+import convergence.settings
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class CommandExecutorTest {
+    private fun chat(name: String) = object: Chat(UniversalProtocol, name) {
+        override fun toKey() = "UniversalChat($name)"
+    }
+
+    private val defaultCapacity = settings.commandQueueCapacity
+
+    @Before
+    fun setup() = resetGlobalState()
+
+    @After
+    fun teardown() {
+        settings.commandQueueCapacity = defaultCapacity
+        resetGlobalState()
+    }
+
+    @Test
+    fun commandsInOneChatRunInOrder() {
+        val chat = chat("ordered")
+        val ran = Collections.synchronizedList(mutableListOf<Int>())
+        val done = CountDownLatch(50)
+        repeat(50) { i ->
+            assertTrue(CommandExecutor.submit(chat) {
+                Thread.sleep((50 - i) % 3L)
+                ran.add(i)
+                done.countDown()
+            })
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS))
+        assertEquals((0 until 50).toList(), ran)
+    }
+
+    @Test
+    fun differentChatsRunInParallel() {
+        // Each chat's command waits for the other's, so this only finishes if they run at the same time.
+        val bothStarted = CountDownLatch(2)
+        val done = CountDownLatch(2)
+        listOf(chat("a"), chat("b")).forEach { chat ->
+            CommandExecutor.submit(chat) {
+                bothStarted.countDown()
+                if (bothStarted.await(5, TimeUnit.SECONDS))
+                    done.countDown()
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS))
+    }
+
+    @Test
+    fun fullQueueRejectsCommands() {
+        val chat = chat("full")
+        val release = CountDownLatch(1)
+        val finished = CountDownLatch(2)
+        // Commands left over from other tests would otherwise count against the capacity.
+        val deadline = System.currentTimeMillis() + 10_000
+        while (CommandExecutor.queueDepth > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10)
+        settings.commandQueueCapacity = 2
+        val rejectedBefore = CommandExecutor.rejected
+        assertTrue(CommandExecutor.submit(chat) { release.await(); finished.countDown() })
+        assertTrue(CommandExecutor.submit(chat) { finished.countDown() })
+        assertFalse(CommandExecutor.submit(chat) {})
+        assertEquals(rejectedBefore + 1, CommandExecutor.rejected)
+        release.countDown()
+        assertTrue(finished.await(10, TimeUnit.SECONDS))
+    }
+
+    @Test
+    fun failingCommandDoesNotBlockTheChat() {
+        val chat = chat("failing")
+        val done = CountDownLatch(1)
+        CommandExecutor.submit(chat) { throw IllegalStateException("Expected by the test") }
+        CommandExecutor.submit(chat) { done.countDown() }
+        assertTrue(done.await(10, TimeUnit.SECONDS))
+    }
+}
@@ -0,0 +1,90 @@
+import convergence.*
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import java.nio.file.Files
+import java.time.OffsetDateTime
+import java.time.ZoneOffset
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class CommandJournalTest {
+    private val time: OffsetDateTime = OffsetDateTime.of(2026, 6, 13, 10, 0, 0, 0, ZoneOffset.UTC)
+
+    @Before
+    fun setup() {
+        resetGlobalState()
+        if (SerProtocol !in bot.protocols) bot.protocols.add(SerProtocol)
+    }
+
+    @After
+    fun teardown() {
+        bot.protocols.remove(SerProtocol)
+        resetGlobalState()
+    }
+
+    private fun command(id: Int) = ScheduledCommand(time, SerChat(1), SerUser(2), "SerTest", "echo", listOf("$id"), id)
+
+    private fun lines() = Files.readAllLines(CommandJournal.defaultPath).filter { it.isNotBlank() }
+
+    @Test
+    fun replaysAddsAndRemoves() {
+        CommandJournal.add(command(1))
+        CommandJournal.add(command(2))
+        CommandJournal.add(command(3))
+        CommandJournal.remove(2)
+        assertEquals(4, lines().size, "Each change should append one line")
+        CommandJournal.clear()
+        assertEquals(mapOf(1 to command(1), 3 to command(3)), CommandJournal.open())
+    }
+
+    @Test
+    fun removingAnUnknownCommandWritesNothing() {
+        CommandJournal.add(command(1))
+        CommandJournal.remove(5)
+        assertEquals(1, lines().size)
+    }
+
+    @Test
+    fun openingCompactsRemovedCommands() {
+        CommandJournal.add(command(1))
+        CommandJournal.add(command(2))
+        CommandJournal.remove(1)
+        CommandJournal.clear()
+        CommandJournal.open()
+        assertEquals(1, lines().size)
+        assertEquals(1, CommandJournal.size)
+    }
+
+    @Test
+    fun startsFromLegacyCommandsWithoutAJournal() {
+        val commands = CommandJournal.open(legacy = mapOf(4 to command(4)))
+        assertEquals(mapOf(4 to command(4)), commands)
+        assertEquals(1, lines().size)
+        CommandJournal.clear()
+        assertEquals(mapOf(4 to command(4)), CommandJournal.open(legacy = mapOf(5 to command(5))),
+            "Legacy commands should only be used when there's no journal")
+    }
+
+    @Test
+    fun skipsLinesCutOffPartway() {
+        CommandJournal.add(command(1))
+        CommandJournal.close()
+        Files.writeString(CommandJournal.defaultPath, Files.readString(CommandJournal.defaultPath) + "{\"add\":{\"ti")
+        CommandJournal.clear()
+        assertEquals(mapOf(1 to command(1)), CommandJournal.open())
+    }
+
+    @Test
+    fun schedulerRestoresCommandsFromTheJournal() {
+        Scheduler.schedule(SerChat(1), SerUser(2), "echo", listOf("a"), OffsetDateTime.now().plusMinutes(5))
+        Scheduler.schedule(SerChat(1), SerUser(2), "echo", listOf("b"), OffsetDateTime.now().plusMinutes(5))
+        Scheduler.unschedule(Scheduler.getCommands().first().id)
+        val remaining = Scheduler.getCommands()
+        Scheduler.clear()
+        CommandJournal.clear()
+        Scheduler.loadFromFile()
+        assertEquals(remaining, Scheduler.getCommands())
+        assertTrue(Scheduler.pending == 1)
+    }
+}
@@ -0,0 +1,147 @@
+import convergence.*
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import kotlin.test.assertContains
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+class CommandMetricsTest {
+    private fun makeCmd(name: String, permissions: CommandFunction = { _, _, _ -> null }, function: CommandFunction) =
+        Command(TestProtocol, name, listOf(), function, "help", "syntax", permissions)
+
+    @Before
+    fun setup() = resetGlobalState()
+
+    @After
+    fun teardown() = resetGlobalState()
+
+    // ─── LatencyHistogram ───────────────────────────────────────────────────
+
+    @Test
+    fun emptyHistogramReportsZero() {
+        val histogram = LatencyHistogram()
+        assertEquals(0, histogram.count)
+        assertEquals(0, histogram.percentile(50.0))
+        assertEquals(0, histogram.mean)
+    }
+
+    @Test
+    fun smallValuesAreExact() {
+        val histogram = LatencyHistogram()
+        (0L..15L).forEach(histogram::record)
+        assertEquals(7, histogram.percentile(50.0))
+        assertEquals(15, histogram.percentile(100.0))
+        assertEquals(15, histogram.max)
+    }
+
+    @Test
+    fun percentilesStayWithinBucketPrecision() {
+        val histogram = LatencyHistogram()
+        (1L..100_000L).forEach(histogram::record)
+        for (p in listOf(50.0, 90.0, 99.0, 99.9)) {
+            val expected = (100_000 * p / 100).toLong()
+            val actual = histogram.percentile(p)
+            assertTrue(actual >= expected && actual <= expected * 1.07, "p$p was $actual, expected about $expected")
+        }
+        assertEquals(100_000, histogram.max)
+        assertEquals(50_000, histogram.mean)
+    }
+
+    @Test
+    fun hugeAndNegativeValuesAreClamped() {
+        val histogram = LatencyHistogram()
+        histogram.record(-5)
+        histogram.record(Long.MAX_VALUE)
+        assertEquals(2, histogram.count)
+        assertEquals(0, histogram.percentile(50.0))
+        assertTrue(histogram.percentile(100.0) > 0)
+    }
+
+    // ─── Command.invoke instrumentation ─────────────────────────────────────
+
+    @Test
+    fun invokeRecordsLatency() {
+        val cmd = makeCmd("slow") { _, _, _ ->
+            Thread.sleep(20)
+            SimpleOutgoingMessage("done")
+        }
+        cmd(listOf(), testChat, testUser)
+        cmd(listOf(), testChat, testUser)
+        val stats = CommandMetrics[cmd]
+        assertEquals(2, stats.latency.count)
+        assertTrue(stats.latency.percentile(50.0) >= 20_000)
+    }
+
+    @Test
+    fun invokeCountsErrorsAndRethrows() {
+        val cmd = makeCmd("broken") { _, _, _ -> throw IllegalStateException("boom") }
+        assertFailsWith<IllegalStateException> { cmd(listOf(), testChat, testUser) }
+        assertEquals(1, CommandMetrics[cmd].errors.sum())
+        assertEquals(1, CommandMetrics[cmd].latency.count)
+    }
+
+    @Test
+    fun invokeCountsPermissionDenialsWithoutRecordingLatency() {
+        val cmd = makeCmd("secret", permissions = { _, _, _ -> SimpleOutgoingMessage("No.") }) { _, _, _ -> null }
+        cmd(listOf(), testChat, testUser)
+        assertEquals(1, CommandMetrics[cmd].permissionDenials.sum())
+        assertEquals(0, CommandMetrics[cmd].latency.count)
+    }
+
+    @Test
+    fun statsAreKeptPerProtocol() {
+        val testCmd = makeCmd("same") { _, _, _ -> null }
+        val universalCmd = Command.of(UniversalProtocol, "same", listOf(), { -> null }, "", "")
+        testCmd(listOf(), testChat, testUser)
+        assertEquals(1, CommandMetrics[testCmd].latency.count)
+        assertEquals(0, CommandMetrics[universalCmd].latency.count)
+    }
+
+    // ─── stats command ──────────────────────────────────────────────────────
+
+    @Test
+    fun statsListsCommandsByTotalTime() {
+        val fast = makeCmd("fast") { _, _, _ -> null }
+        val slow = makeCmd("slow") { _, _, _ ->
+            Thread.sleep(10)
+            null
+        }
+        fast(listOf(), testChat, testUser)
+        slow(listOf(), testChat, testUser)
+        val text = stats(listOf())
+        assertTrue(text.indexOf("/slow") in 0 until text.indexOf("/fast"), text)
+    }
+
+    @Test
+    fun statsForOneCommandShowsDetail() {
+        val cmd = makeCmd("ping") { _, _, _ -> null }
+        cmd(listOf(), testChat, testUser)
+        assertContains(stats(listOf("PING")), "p99.9")
+        assertContains(stats(listOf("nope")), "hasn't been run")
+    }
+
+    @Test
+    fun statsWithNothingRun() {
+        assertContains(stats(listOf()), "No commands have been run yet.")
+    }
+
+    // ─── MetricsReport ──────────────────────────────────────────────────────
+
+    @Test
+    fun commandsAndOtherSectionsAreInTheMetricsReport() {
+        makeCmd("reported") { _, _, _ -> null }(listOf(), testChat, testUser)
+        MetricsReport.register { listOf("Something else: fine.") }
+        val snapshot = MetricsReport.snapshot()
+        assertTrue(snapshot.any { it.startsWith("Test/reported: ran 1 times") }, snapshot.toString())
+        assertTrue("Something else: fine." in snapshot)
+    }
+
+    @Test
+    fun aBrokenSectionDoesNotStopTheReport() {
+        MetricsReport.register { throw IllegalStateException("Broken section") }
+        MetricsReport.register { listOf("After the broken one.") }
+        assertTrue("After the broken one." in MetricsReport.snapshot())
+    }
+}
@@ -68,7 +68,8 @@ class CommandParserTest {
         val testIndex = command.indexOf(" ")
         val testCommandStr = command.substring(1, if (testIndex == -1) command.length else testIndex)
         val testCommand = Command.of(testChat.protocol, testCommandStr, listOf(), ::doNothing, "test", "test")
-        bot.commands[testChat.protocol] = mutableMapOf(testCommandStr to testCommand)
+        CommandRegistry.clear()
+        registerCommand(testCommand)
         return parseCommand(command, testChat)
     }
 
@@ -156,8 +157,9 @@ class CommandParserTest {
         val testCommand = Command.of(testChat.protocol, "test", listOf(), ::doNothing, "test", "test")
         val testAlias =
             Alias(testChat, testAliasStr, testCommand, listOf("testArg1", "testArg2"))
-        bot.commands[testChat.protocol] = mutableMapOf("test" to testCommand)
-        settings.aliases[testChat] = mutableMapOf(testAliasStr to testAlias)
+        CommandRegistry.clear()
+        registerCommand(testCommand)
+        registerAlias(testAlias)
         return parseCommand(command, testChat)
     }
 
@@ -218,15 +220,13 @@ class CommandParserTest {
 
     @Before
     fun setup() {
-        bot.commands.remove(UniversalProtocol)
-        settings.aliases.clear()
+        CommandRegistry.clear()
         settings.commandDelimiters.clear()
     }
 
     @After
     fun teardown() {
-        bot.commands.remove(UniversalProtocol)
-        settings.aliases.clear()
+        CommandRegistry.clear()
         settings.commandDelimiters.clear()
     }
 
@@ -234,9 +234,7 @@ class CommandParserTest {
 
     private fun registerTestCommand(name: String): Command {
         val cmd = Command.of(UniversalProtocol, name, listOf(), ::doNothing, "test", "test")
-        if (UniversalProtocol !in bot.commands)
-            bot.commands[UniversalProtocol] = mutableMapOf()
-        bot.commands[UniversalProtocol]!![name.lowercase()] = cmd
+        registerCommand(cmd)
         return cmd
     }
 
@@ -276,9 +274,7 @@ class CommandParserTest {
     @Test
     fun multiCharDelimiterMatchesCorrectly() {
         val chat = TestChat()
-        bot.commands[UniversalProtocol] = mutableMapOf(
-            "echo" to Command.of(UniversalProtocol, "echo", listOf(), ::doNothing, "test", "test")
-        )
+        registerCommand(Command.of(UniversalProtocol, "echo", listOf(), ::doNothing, "test", "test"))
         settings.commandDelimiters[chat] = "!!"
         val result = parseCommand("!!echo hello", "!!", chat)
         assertEquals("echo", result?.command?.name)
@@ -288,9 +284,7 @@ class CommandParserTest {
     @Test
     fun singleCharPrefixDoesNotMatchMultiCharDelimiter() {
         val chat = TestChat()
-        bot.commands[UniversalProtocol] = mutableMapOf(
-            "echo" to Command.of(UniversalProtocol, "echo", listOf(), ::doNothing, "test", "test")
-        )
+        registerCommand(Command.of(UniversalProtocol, "echo", listOf(), ::doNothing, "test", "test"))
         assertNull(parseCommand("!echo hello", "!!", chat))
     }
 
@@ -302,9 +296,7 @@ class CommandParserTest {
         // leading "!", but its error-recovery includes "!" in commandName.text ("!echo"),
         // so getCommand("!echo", …) throws CommandDoesNotExist rather than finding "echo".
         val chat = TestChat()
-        bot.commands[UniversalProtocol] = mutableMapOf(
-            "echo" to Command.of(UniversalProtocol, "echo", listOf(), ::doNothing, "test", "test")
-        )
+        registerCommand(Command.of(UniversalProtocol, "echo", listOf(), ::doNothing, "test", "test"))
         assertFailsWith<CommandDoesNotExist> { parseCommand("!!!echo", "!!", chat) }
     }
 
@@ -697,17 +689,74 @@ class CommandParserTest {
         assertEquals(listOf("a", "b", "c"), parseArgs("!test a  b\t\tc"))
     }
 
+    // ─── plain-command fast path ──────────────────────────────────────────────
+
+    @Test
+    fun plainCommandSkipsGrammar() {
+        assertEquals("echo" to listOf("hello", "world"), tokenizePlainCommand("echo hello  world"))
+        assertEquals("ping" to emptyList<String>(), tokenizePlainCommand("ping"))
+        assertEquals("ping" to emptyList<String>(), tokenizePlainCommand("ping   "))
+        assertEquals("say" to listOf("héllo", "wörld!"), tokenizePlainCommand("say héllo\twörld!"))
+    }
+
+    @Test
+    fun plainCommandUsesGrammarWhitespace() {
+        // No-break space is \p{White_Space}, but the information separators Char.isWhitespace() accepts aren't.
+        assertEquals("echo" to listOf("a", "b"), tokenizePlainCommand("echo a\u00a0b"))
+        assertEquals("echo" to listOf("a\u001cb"), tokenizePlainCommand("echo a\u001cb"))
+    }
+
+    @Test
+    fun plainCommandFallsBackForAnythingElse() {
+        assertNull(tokenizePlainCommand("echo \"quoted arg\""))
+        assertNull(tokenizePlainCommand("echo a\\tb"))
+        assertNull(tokenizePlainCommand("echo.cmd"))
+        assertNull(tokenizePlainCommand("!echo"))
+        assertNull(tokenizePlainCommand(" echo"))
+        assertNull(tokenizePlainCommand(""))
+    }
+
+    @Test
+    fun plainCommandMatchesGrammar() {
+        listOf("echo", "echo hello", "echo  a\tb \u00a0c ", "Echo 123 x.y!z", "test héllo wörld").forEach {
+            assertEquals(tokenizeWithGrammar(it, it, "test"), tokenizePlainCommand(it), it)
+        }
+    }
+
+    // ─── reused grammar parser ────────────────────────────────────────────────
+
+    @Test
+    fun grammarParserIsReusedCleanlyAfterErrors() {
+        assertFailsWith<InvalidEscapeSequenceException> { tokenizeWithGrammar("echo \\q", "echo \\q", "test") }
+        // Needs the full-LL retry to recover the missing quote.
+        assertEquals("echo" to listOf("unclosed"), tokenizeWithGrammar("echo \"unclosed", "echo \"unclosed", "test"))
+        assertFailsWith<InvalidCommandParseException> {
+            tokenizeWithGrammar("echo \"a\"\"b\"", "echo \"a\"\"b\"", "test")
+        }
+        assertEquals(
+            "echo" to listOf("a b", "\t"),
+            tokenizeWithGrammar("echo \"a b\" \\t", "echo \"a b\" \\t", "test")
+        )
+    }
+
+    @Test
+    fun warmUpLeavesParserUsable() {
+        warmUpCommandParser()
+        registerTestCommand("echo")
+        assertEquals(listOf("x y"), parseArgs("!echo \"x y\""))
+    }
+
     // ─── command lookup priority ──────────────────────────────────────────────
 
     @Test
     fun chatAliasTakesPriorityOverProtocolCommand() {
         val chat = TestChat()
         val underlyingCmd = Command.of(UniversalProtocol, "ping", listOf(), ::doNothing, "test", "test")
-        bot.commands[UniversalProtocol] = mutableMapOf("ping" to underlyingCmd)
+        registerCommand(underlyingCmd)
 
         // Alias "ping" has a preset arg — it should win over the bare protocol command.
         val alias = Alias(chat, "ping", underlyingCmd, listOf("aliasArg"))
-        settings.aliases[chat] = mutableMapOf("ping" to alias)
+        registerAlias(alias)
 
         val result = parseCommand("!ping", chat)
         assertEquals(listOf("aliasArg"), result?.args)
@@ -2,8 +2,12 @@ import convergence.*
 import org.junit.After
 import org.junit.Before
 import org.junit.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
 import kotlin.test.assertFalse
+import kotlin.test.assertNotNull
 import kotlin.test.assertNull
+import kotlin.test.assertSame
 import kotlin.test.assertTrue
 
 class CommandRegistryTest {
@@ -99,6 +103,166 @@ class CommandRegistryTest {
         assertTrue(registerAlias(alias2))
     }
 
+    // ─── registry snapshots ─────────────────────────────────────────────────
+
+    @Test
+    fun snapshotsAreUnaffectedByLaterRegistrations() {
+        registerCommand(Command.of(TestProtocol, "first", listOf(), { -> null }, "help", "syntax"))
+        val before = CommandRegistry.snapshot
+        registerCommand(Command.of(TestProtocol, "second", listOf(), { -> null }, "help", "syntax"))
+        assertEquals(setOf("first"), before.commands[TestProtocol]!!.keys)
+        assertEquals(setOf("first", "second"), CommandRegistry.snapshot.commands[TestProtocol]!!.keys)
+        assertTrue(CommandRegistry.snapshot.version > before.version)
+    }
+
+    @Test
+    fun concurrentRegistrationsAreNotLost() {
+        val threads = (0 until 8).map { t ->
+            Thread {
+                repeat(50) { i ->
+                    registerCommand(Command.of(TestProtocol, "cmd${t}_$i", listOf(), { -> null }, "help", "syntax"))
+                    registerAlias(Alias(testChat, "alias${t}_$i", getCommand("ping", testChat) as Command, listOf()))
+                }
+            }
+        }
+        registerCommand(Command.of(UniversalProtocol, "ping", listOf(), { -> null }, "help", "syntax"))
+        threads.forEach { it.start() }
+        threads.forEach { it.join() }
+        assertEquals(400, bot.commands[TestProtocol]!!.size)
+        assertEquals(400, settings.aliases[testChat]!!.size)
+    }
+
+    // ─── parsed command cache ───────────────────────────────────────────────
+
+    @Test
+    fun repeatedCommandTextHitsCache() {
+        registerCommand(Command.of(UniversalProtocol, "echo", listOf(), ::echo, "help", "syntax"))
+        val misses = ParsedCommandCache.misses
+        val hits = ParsedCommandCache.hits
+        val first = parseCommand("!echo hi there", testChat)
+        val second = parseCommand("!echo hi there", testChat)
+        assertEquals(first, second)
+        assertEquals(misses + 1, ParsedCommandCache.misses)
+        assertEquals(hits + 1, ParsedCommandCache.hits)
+    }
+
+    @Test
+    fun registeringAliasInvalidatesCache() {
+        val cmd = Command.of(UniversalProtocol, "echo", listOf(), ::echo, "help", "syntax")
+        registerCommand(cmd)
+        registerCommand(Command.of(UniversalProtocol, "greet", listOf(), ::echo, "help", "syntax"))
+        assertEquals(listOf<String>(), parseCommand("!greet", testChat)?.args)
+        registerAlias(Alias(testChat, "greet", cmd, listOf("hello")))
+        assertEquals(listOf("hello"), parseCommand("!greet", testChat)?.args)
+        assertTrue(unregisterAlias(testChat, "greet"))
+        assertEquals(listOf<String>(), parseCommand("!greet", testChat)?.args)
+        assertFalse(unregisterAlias(testChat, "greet"))
+    }
+
+    @Test
+    fun registeringCommandInvalidatesCache() {
+        assertFailsWith<CommandDoesNotExist> { parseCommand("!later", testChat) }
+        val cmd = Command.of(UniversalProtocol, "later", listOf(), ::echo, "help", "syntax")
+        registerCommand(cmd)
+        assertEquals(cmd, parseCommand("!later", testChat)?.command)
+    }
+
+    @Test
+    fun entriesFromAnOlderRegistryVersionAreMisses() {
+        val cmd = Command.of(UniversalProtocol, "echo", listOf(), ::echo, "help", "syntax")
+        registerCommand(cmd)
+        val staleVersion = CommandRegistry.snapshot.version
+        registerCommand(Command.of(UniversalProtocol, "other", listOf(), ::echo, "help", "syntax"))
+        // Like a parse that started before the registration and finished after it bumped the version.
+        ParsedCommandCache["!", "!echo", testChat, staleVersion] = CommandWithArgs(cmd, listOf("stale"))
+        assertNull(ParsedCommandCache["!", "!echo", testChat])
+        assertEquals(listOf<String>(), parseCommand("!echo", testChat)?.args)
+    }
+
+    @Test
+    fun changingDelimiterInvalidatesCache() {
+        registerCommand(Command.of(UniversalProtocol, "echo", listOf(), ::echo, "help", "syntax"))
+        assertNotNull(parseCommand("!echo", testChat))
+        assertTrue(setCommandDelimiter(testChat, "?"))
+        assertNull(parseCommand("!echo", testChat))
+        assertNotNull(parseCommand("?echo", testChat))
+    }
+
+    // ─── command resolution tables ──────────────────────────────────────────
+
+    @Test
+    fun resolutionTableSeesLaterRegistrations() {
+        val chat = object : Chat(TestProtocol, "Resolution") {
+            override fun toKey() = "TestChat(Resolution)"
+        }
+        val universal = Command.of(UniversalProtocol, "ping", listOf(), ::echo, "help", "syntax")
+        registerCommand(universal)
+        assertEquals(universal, getCommand("ping", chat))
+
+        val protocolCmd = Command.of(TestProtocol, "ping", listOf(), ::echo, "help", "syntax")
+        registerCommand(protocolCmd)
+        assertEquals(protocolCmd, getCommand("ping", chat))
+
+        assertEquals(universal, getCommand("ping", testChat))
+        val alias = Alias(testChat, "ping", universal, listOf("aliased"))
+        registerAlias(alias)
+        assertEquals(alias, getCommand("ping", testChat))
+        assertEquals(protocolCmd, getCommand("ping", chat))
+
+        unregisterAlias(testChat, "ping")
+        assertEquals(universal, getCommand("ping", testChat))
+    }
+
+    // ─── CommandCatalog ─────────────────────────────────────────────────────
+
+    @Test
+    fun catalogKeepsCommandsSortedAsTheyAreRegistered() {
+        listOf("delta", "Alpha", "charlie", "bravo").forEach {
+            registerCommand(Command.of(TestProtocol, it, listOf(), { -> null }, "help", "syntax"))
+        }
+        registerCommand(Command.of(UniversalProtocol, "bananas", listOf(), { -> null }, "help", "syntax"))
+        val names = CommandRegistry.snapshot.catalog.commandsFor(TestProtocol).map { it.name }
+        assertEquals(listOf("Alpha", "bananas", "bravo", "charlie", "delta"), names)
+        assertEquals(listOf("bananas"), CommandRegistry.snapshot.catalog.commandsFor(UniversalProtocol).map { it.name })
+    }
+
+    @Test
+    fun catalogKeepsAliasesSortedThroughAddsAndRemoves() {
+        val cmd = Command.of(UniversalProtocol, "echo", listOf(), ::echo, "help", "syntax")
+        listOf("zed", "mid", "abc").forEach { registerAlias(Alias(testChat, it, cmd, listOf())) }
+        unregisterAlias(testChat, "mid")
+        assertEquals(listOf("abc", "zed"), CommandRegistry.snapshot.catalog.aliasNames(listOf(testChat)))
+    }
+
+    @Test
+    fun helpPagesAreRenderedOncePerRegistryChange() {
+        registerCommand(Command.of(UniversalProtocol, "ping", listOf(), ::ping, "Pong!", "ping"))
+        val catalog = CommandRegistry.snapshot.catalog
+        assertSame(catalog.helpPages(UniversalProtocol), catalog.helpPages(UniversalProtocol))
+
+        registerCommand(Command.of(UniversalProtocol, "echo", listOf(), ::echo, "Echo!", "echo"))
+        val pages = CommandRegistry.snapshot.catalog.helpPages(UniversalProtocol)
+        assertEquals(listOf("Help page 1/1:\necho - Echo!\nping - Pong!\n"), pages)
+    }
+
+    @Test
+    fun helpPagesSplitAtPageSize() {
+        (1..COMMANDS_PER_PAGE + 1).forEach {
+            registerCommand(Command.of(UniversalProtocol, "cmd%02d".format(it), listOf(), { -> null }, "help", "syntax"))
+        }
+        val pages = CommandRegistry.snapshot.catalog.helpPages(UniversalProtocol)
+        assertEquals(2, pages.size)
+        assertTrue(pages[1].startsWith("Help page 2/2:\ncmd11"))
+    }
+
+    @Test
+    fun loadingAliasesRebuildsTheirIndex() {
+        val cmd = Command.of(UniversalProtocol, "echo", listOf(), ::echo, "help", "syntax")
+        registerAlias(Alias(testChat, "old", cmd, listOf()))
+        CommandRegistry.loadAliases(mapOf(testChat to mapOf("new" to Alias(testChat, "new", cmd, listOf()))))
+        assertEquals(listOf("new"), CommandRegistry.snapshot.catalog.aliasNames(listOf(testChat)))
+    }
+
     // ─── getStackTraceText ──────────────────────────────────────────────────
 
     @Test
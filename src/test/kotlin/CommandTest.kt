@@ -2,7 +2,12 @@ import convergence.*
 import org.junit.After
 import org.junit.Before
 import org.junit.Test
+import java.time.Duration
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertContains
 import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
 import kotlin.test.assertNull
 import kotlin.test.assertTrue
 
@@ -140,6 +145,14 @@ class CommandTest {
         assertEquals("ping ", alias.commandText())
     }
 
+    @Test
+    fun commandsCannotChangeTheArgsAliasesShare() {
+        val cmd = Command.of(TestProtocol, "echo", listOf(), ::echo, "help", "syntax")
+        val alias = Alias(testChat, "greet", cmd, listOf("hello"))
+        assertFailsWith<UnsupportedOperationException> { alias.argsWith(listOf()).mutable().add("world") }
+        assertEquals(listOf("hello"), alias.argsWith(listOf()))
+    }
+
     // ─── CommandLike ordering ───────────────────────────────────────────────
 
     @Test
@@ -155,4 +168,104 @@ class CommandTest {
         val cmd2 = Command.of(TestProtocol, "aaa", listOf(), ::ping, "", "")
         assertTrue(cmd1.compareTo(cmd2) != 0)
     }
+
+    // ─── Command.invoke: timeouts and bulkheads ─────────────────────────────
+
+    @Test
+    fun invokeStopsCommandsThatRunPastTheirTimeout() {
+        val interrupted = CountDownLatch(1)
+        val cmd = makeCmd("hang") { _, _, _ ->
+            try {
+                Thread.sleep(10_000)
+            } catch(_: InterruptedException) {
+                interrupted.countDown()
+            }
+            SimpleOutgoingMessage("done")
+        }.withLimits(timeout = Duration.ofMillis(50))
+        val result = cmd.invoke(listOf(), testChat, testUser)
+        assertContains(result?.toSimple()?.text ?: "", "took longer than 50.0ms")
+        assertEquals(1, cmd.timeouts)
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS))
+    }
+
+    @Test
+    fun invokeReturnsResultWhenWithinTimeout() {
+        val cmd = makeCmd("quick") { _, _, _ -> SimpleOutgoingMessage("done") }
+            .withLimits(timeout = Duration.ofSeconds(5))
+        assertEquals("done", cmd.invoke(listOf(), testChat, testUser)?.toSimple()?.text)
+        assertEquals(0, cmd.timeouts)
+    }
+
+    @Test
+    fun invokeRethrowsExceptionsFromTimedCommands() {
+        val cmd = makeCmd("broken") { _, _, _ -> throw IllegalStateException("boom") }
+            .withLimits(timeout = Duration.ofSeconds(5))
+        val e = runCatching { cmd.invoke(listOf(), testChat, testUser) }.exceptionOrNull()
+        assertTrue(e is IllegalStateException)
+    }
+
+    @Test
+    fun invokeTurnsAwayCommandsWhenBulkheadIsFull() {
+        val bulkhead = Bulkhead("slow", 1)
+        val started = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val slow = makeCmd("slow") { _, _, _ ->
+            started.countDown()
+            release.await()
+            SimpleOutgoingMessage("slow done")
+        }.withLimits(bulkhead = bulkhead)
+        val other = makeCmd("otherSlow") { _, _, _ -> SimpleOutgoingMessage("other done") }.withLimits(bulkhead = bulkhead)
+        val ping = makeCmd("ping") { _, _, _ -> SimpleOutgoingMessage("pong") }
+
+        val thread = Thread { slow.invoke(listOf(), testChat, testUser) }.apply { start() }
+        assertTrue(started.await(5, TimeUnit.SECONDS))
+        assertContains(other.invoke(listOf(), testChat, testUser)?.toSimple()?.text ?: "", "Too many slow commands")
+        assertEquals("pong", ping.invoke(listOf(), testChat, testUser)?.toSimple()?.text)
+        assertEquals(1, bulkhead.rejected)
+
+        release.countDown()
+        thread.join(5000)
+        assertEquals(0, bulkhead.running)
+        assertEquals("other done", other.invoke(listOf(), testChat, testUser)?.toSimple()?.text)
+    }
+
+    @Test
+    fun bulkheadIsReleasedWhenCommandTimesOut() {
+        val bulkhead = Bulkhead("hanging", 1)
+        val cmd = makeCmd("hang") { _, _, _ ->
+            Thread.sleep(10_000)
+            SimpleOutgoingMessage("done")
+        }.withLimits(Duration.ofMillis(50), bulkhead)
+        cmd.invoke(listOf(), testChat, testUser)
+        val deadline = System.currentTimeMillis() + 5000
+        while (bulkhead.running > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10)
+        assertEquals(0, bulkhead.running)
+    }
+
+    @Test
+    fun bulkheadIsHeldUntilATimedOutCommandReallyStops() {
+        val bulkhead = Bulkhead("stubborn", 1)
+        val release = CountDownLatch(1)
+        val cmd = makeCmd("stubborn") { _, _, _ ->
+            // Like a blocking call that doesn't check whether it's been interrupted.
+            while (release.count > 0) {
+                try {
+                    release.await()
+                } catch(_: InterruptedException) {
+                    // Keeps waiting anyway.
+                }
+            }
+            SimpleOutgoingMessage("done")
+        }.withLimits(Duration.ofMillis(50), bulkhead)
+        assertContains(cmd.invoke(listOf(), testChat, testUser)?.toSimple()?.text ?: "", "took longer")
+        assertEquals(1, bulkhead.running)
+        assertContains(cmd.invoke(listOf(), testChat, testUser)?.toSimple()?.text ?: "", "Too many stubborn commands")
+
+        release.countDown()
+        val deadline = System.currentTimeMillis() + 5000
+        while (bulkhead.running > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10)
+        assertEquals(0, bulkhead.running)
+    }
 }
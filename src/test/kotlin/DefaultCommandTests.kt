@@ -8,9 +8,7 @@ import kotlin.test.assertEquals
 val testChat = TestChat()
 
 class TestUser: User(TestProtocol) {
-    override fun toKey(): String {
-        TODO("Not needed for tests")
-    }
+    override fun toKey() = "TestUser(Test)"
 }
 
 val testUser = TestUser()
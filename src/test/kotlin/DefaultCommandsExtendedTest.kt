@@ -156,7 +156,7 @@ class DefaultCommandsExtendedTest {
     @Test
     fun removeAliasSucceeds() {
         val cmd = Command.of(UniversalProtocol, "echo", listOf(), ::echo, "test", "test")
-        settings.aliases[testChat] = mutableMapOf("mything" to Alias(testChat, "mything", cmd, listOf()))
+        registerAlias(Alias(testChat, "mything", cmd, listOf()))
         assertEquals("Alias \"mything\" removed.", removeAlias(listOf("mything"), testChat))
         assertTrue(settings.aliases[testChat].isNullOrEmpty(), "Alias entry should be removed from the map")
     }
@@ -165,7 +165,7 @@ class DefaultCommandsExtendedTest {
     fun removeAliasCaseSensitiveLookup() {
         // Keys are stored lowercase; passing a different case should not find the alias.
         val cmd = Command.of(UniversalProtocol, "echo", listOf(), ::echo, "test", "test")
-        settings.aliases[testChat] = mutableMapOf("mything" to Alias(testChat, "mything", cmd, listOf()))
+        registerAlias(Alias(testChat, "mything", cmd, listOf()))
         assertEquals("No alias with name \"MyThing\" found.", removeAlias(listOf("MyThing"), testChat))
     }
 
@@ -339,22 +339,16 @@ class DefaultCommandsExtendedTest {
 
     @Test
     fun commandsListsProtocolSpecificCommands() {
-        bot.commands[TestProtocol] = mutableMapOf(
-            "alpha" to Command.of(TestProtocol, "alpha", listOf(), { -> null }, "help", "syntax"),
-            "beta"  to Command.of(TestProtocol, "beta",  listOf(), { -> null }, "help", "syntax"),
-        )
+        registerCommand(Command.of(TestProtocol, "beta",  listOf(), { -> null }, "help", "syntax"))
+        registerCommand(Command.of(TestProtocol, "alpha", listOf(), { -> null }, "help", "syntax"))
         val result = commands(testProtocolChat)
         assertEquals("alpha, beta", result, "Commands should be sorted alphabetically")
     }
 
     @Test
     fun commandsIncludesUniversalProtocolCommands() {
-        bot.commands[TestProtocol] = mutableMapOf(
-            "mycmd" to Command.of(TestProtocol, "mycmd", listOf(), { -> null }, "help", "syntax")
-        )
-        bot.commands[UniversalProtocol] = mutableMapOf(
-            "ping" to Command.of(UniversalProtocol, "ping", listOf(), ::ping, "Pong!", "ping")
-        )
+        registerCommand(Command.of(TestProtocol, "mycmd", listOf(), { -> null }, "help", "syntax"))
+        registerCommand(Command.of(UniversalProtocol, "ping", listOf(), ::ping, "Pong!", "ping"))
         val result = commands(testProtocolChat)
         assertTrue(result.contains("mycmd"), "Protocol-specific command should appear")
         assertTrue(result.contains("ping"), "Universal command should appear")
@@ -370,9 +364,7 @@ class DefaultCommandsExtendedTest {
     @Test
     fun aliasesListsAliasesForChat() {
         val cmd = Command.of(UniversalProtocol, "echo", listOf(), ::echo, "test", "test")
-        settings.aliases[testChat] = mutableMapOf(
-            "greet" to Alias(testChat, "greet", cmd, listOf("hello"))
-        )
+        registerAlias(Alias(testChat, "greet", cmd, listOf("hello")))
         val result = aliases(testChat)
         assertTrue(result.startsWith("Aliases:"), "Unexpected prefix: $result")
         assertTrue(result.contains("greet"), "Expected alias name in result")
@@ -381,10 +373,8 @@ class DefaultCommandsExtendedTest {
     @Test
     fun aliasesListsMultipleAliases() {
         val cmd = Command.of(UniversalProtocol, "echo", listOf(), ::echo, "test", "test")
-        settings.aliases[testChat] = mutableMapOf(
-            "a1" to Alias(testChat, "a1", cmd, listOf()),
-            "a2" to Alias(testChat, "a2", cmd, listOf()),
-        )
+        registerAlias(Alias(testChat, "a1", cmd, listOf()))
+        registerAlias(Alias(testChat, "a2", cmd, listOf()))
         val result = aliases(testChat)
         assertTrue(result.contains("a1"))
         assertTrue(result.contains("a2"))
@@ -422,6 +412,21 @@ class DefaultCommandsExtendedTest {
         assertTrue(result.contains("ping"), "Expected 'ping' in help output")
     }
 
+    @Test
+    fun helpPageOnlyListsCommandsUsableInTheChat() {
+        registerCommand(Command.of(UniversalProtocol, "ping", listOf(), ::ping, "Replies with Pong!", "ping"))
+        registerCommand(Command.of(TestProtocol, "mycmd", listOf(), { -> null }, "Test only.", "mycmd"))
+        assertFalse(help(listOf(), testChat).contains("mycmd"))
+        assertTrue(help(listOf(), testProtocolChat).contains("mycmd"))
+        assertTrue(help(listOf(), testProtocolChat).contains("ping"))
+    }
+
+    @Test
+    fun helpWithNoCommandsSaysSo() {
+        assertEquals("No commands found.", help(listOf(), testChat))
+        assertEquals("No commands found.", help(listOf("3"), testChat))
+    }
+
     @Test
     fun helpLookupByNameReturnsCommandDetails() {
         registerCommand(Command.of(UniversalProtocol, "echo", listOf(), ::echo, "Echoes input.", "echo [msg...]"))
@@ -1,6 +1,8 @@
 import convergence.*
 import org.junit.Test
 import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertSame
 import kotlin.test.assertTrue
 
 class ExtensionsTest {
@@ -32,6 +34,32 @@ class ExtensionsTest {
         assertEquals("", "abcabc".substringBetween("abc", "abc"))
     }
 
+    // ─── concatView ─────────────────────────────────────────────────────────
+
+    @Test
+    fun concatViewJoinsBothLists() {
+        val joined = listOf("a", "b").concatView(listOf("c"))
+        assertEquals(listOf("a", "b", "c"), joined)
+        assertEquals(3, joined.size)
+        assertEquals("c", joined[2])
+        assertEquals("a b c", joined.joinToString(" "))
+    }
+
+    @Test
+    fun concatViewReusesListWhenOtherIsEmpty() {
+        val first = listOf("a")
+        val second = listOf("b")
+        assertSame(first, first.concatView(emptyList()))
+        assertSame(second, emptyList<String>().concatView(second))
+    }
+
+    @Test
+    fun concatViewRejectsOutOfRangeIndex() {
+        val joined = listOf("a").concatView(listOf("b"))
+        assertFailsWith<IndexOutOfBoundsException> { joined[2] }
+        assertFailsWith<IndexOutOfBoundsException> { joined[-1] }
+    }
+
     // ─── titleCase ──────────────────────────────────────────────────────────
 
     @Test
@@ -0,0 +1,159 @@
+import com.sun.net.httpserver.HttpServer
+import convergence.discord.ImageUploader
+import convergence.discord.nextcloudPassword
+import convergence.settings
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.net.InetSocketAddress
+import java.net.URI
+import java.util.Base64
+import java.util.Collections
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class ImageUploaderTest {
+    private val defaultRetryDelay = settings.uploadRetryDelayMs
+    private val defaultHashLimit = settings.uploadedImageHashLimit
+    private lateinit var server: HttpServer
+    private val received: MutableList<Pair<String, String>> = Collections.synchronizedList(mutableListOf())
+    // Statuses to answer with, in order, before going back to 201.
+    private val statuses = ConcurrentLinkedQueue<Int>()
+    // Uploads wait for this before they're answered.
+    @Volatile
+    private var gate = CountDownLatch(0)
+    private val expectedAuthorization =
+        "Basic " + Base64.getEncoder().encodeToString("bot:${nextcloudPassword ?: ""}".toByteArray())
+    private val baseURL get() = URI("http://localhost:${server.address.port}/dav")
+
+    @Before
+    fun setup() {
+        resetGlobalState()
+        settings.uploadRetryDelayMs = 1
+        server = HttpServer.create(InetSocketAddress("localhost", 0), 0).apply {
+            createContext("/") { exchange ->
+                // Like Nextcloud, anything without the bot's credentials gets a challenge instead.
+                if (exchange.requestHeaders.getFirst("Authorization") != expectedAuthorization) {
+                    exchange.requestBody.readAllBytes()
+                    exchange.responseHeaders.add("WWW-Authenticate", "Basic realm=\"dav\"")
+                    exchange.sendResponseHeaders(401, -1)
+                    exchange.close()
+                    return@createContext
+                }
+                gate.await()
+                val body = exchange.requestBody.readAllBytes().decodeToString()
+                received.add(exchange.requestURI.rawPath to body)
+                exchange.sendResponseHeaders(statuses.poll() ?: 201, -1)
+                exchange.close()
+            }
+            start()
+        }
+    }
+
+    @After
+    fun teardown() {
+        server.stop(0)
+        settings.uploadRetryDelayMs = defaultRetryDelay
+        settings.uploadedImageHashLimit = defaultHashLimit
+        resetGlobalState()
+    }
+
+    private fun upload(content: String, filename: String = "image.png", url: URI = baseURL) = ImageUploader.upload(
+        url, filename, "image/png", content.length.toLong()
+    ) { ByteArrayInputStream(content.toByteArray()) }.get(5, TimeUnit.SECONDS)
+
+    @Test
+    fun uploadsTheImageToTheURL() {
+        assertTrue(upload("pixels", "a photo.png"))
+        assertEquals(listOf("/dav/a+photo.png" to "pixels"), received)
+        assertEquals(1, ImageUploader.uploaded)
+    }
+
+    @Test
+    fun credentialsAreSentWithTheFirstRequest() {
+        assertTrue(upload("private"))
+        assertEquals(listOf("/dav/image.png" to "private"), received, "The upload shouldn't need to be sent again")
+        assertEquals(0, ImageUploader.retried)
+    }
+
+    @Test
+    fun imagesAlreadyAtTheURLAreSkipped() {
+        assertTrue(upload("same", "first.png"))
+        assertTrue(upload("same", "second.png"))
+        assertEquals(1, received.size)
+        assertEquals(1, ImageUploader.skipped)
+
+        assertTrue(upload("same", url = URI("$baseURL/elsewhere")))
+        assertEquals(2, received.size)
+    }
+
+    @Test
+    fun imagesBeingUploadedGoHoweverThatUploadGoes() {
+        gate = CountDownLatch(1)
+        statuses.add(403)
+        val open = { ByteArrayInputStream("twice".toByteArray()) }
+        val first = ImageUploader.upload(baseURL, "first.png", "image/png", 5, open)
+        val second = ImageUploader.upload(baseURL, "second.png", "image/png", 5, open)
+        Thread.sleep(100)
+        gate.countDown()
+        assertFalse(first.get(5, TimeUnit.SECONDS))
+        assertFalse(second.get(5, TimeUnit.SECONDS), "It wasn't uploaded, so it shouldn't say it was")
+        assertEquals(1, received.size)
+        assertEquals(0, ImageUploader.skipped)
+    }
+
+    @Test
+    fun uploadedHashesAreKeptAcrossRestarts() {
+        assertTrue(upload("kept"))
+        // Forgets everything in memory, like a restart, but leaves the log.
+        ImageUploader.clear()
+        assertTrue(upload("kept"))
+        assertEquals(1, received.size)
+        assertEquals(1, ImageUploader.skipped)
+    }
+
+    @Test
+    fun onlyTheMostRecentHashesAreKept() {
+        settings.uploadedImageHashLimit = 2
+        assertTrue(upload("one"))
+        assertTrue(upload("two"))
+        assertTrue(upload("three"))
+        assertTrue(upload("three"))
+        assertEquals(3, received.size)
+        assertTrue(upload("one"))
+        assertEquals(4, received.size, "The oldest hash should have been forgotten")
+    }
+
+    @Test
+    fun serverErrorsAreRetried() {
+        statuses.addAll(listOf(503, 429))
+        assertTrue(upload("flaky"))
+        assertEquals(3, received.size)
+        assertTrue(received.all { it.second == "flaky" })
+        assertEquals(2, ImageUploader.retried)
+    }
+
+    @Test
+    fun clientErrorsAreNotRetried() {
+        statuses.add(409)
+        assertFalse(upload("rejected"))
+        assertEquals(1, received.size)
+        assertEquals(1, ImageUploader.failed)
+        // It wasn't uploaded, so it's tried again next time.
+        assertTrue(upload("rejected"))
+        assertEquals(2, received.size)
+    }
+
+    @Test
+    fun givesUpAfterRepeatedFailures() {
+        statuses.addAll(List(10) { 500 })
+        assertFalse(upload("broken"))
+        assertEquals(5, received.size)
+        assertEquals(0, ImageUploader.queueDepth)
+    }
+}
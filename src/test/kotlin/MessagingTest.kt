@@ -4,6 +4,7 @@ import org.junit.Before
 import org.junit.Test
 import kotlin.test.assertEquals
 import kotlin.test.assertNull
+import kotlin.test.assertSame
 
 class MessagingTest {
 
@@ -73,6 +74,32 @@ class MessagingTest {
         assertEquals("Hello %custom!", result?.toSimple()?.text)
     }
 
+    @Test
+    fun replaceAliasVarsSeesVarsAddedLater() {
+        assertEquals("Hi %late", replaceAliasVars(testChat, SimpleOutgoingMessage("Hi %late"), testUser)?.toSimple()?.text)
+        bot.aliasVars["%late"] = { _, _ -> "there" }
+        assertEquals("Hi there", replaceAliasVars(testChat, SimpleOutgoingMessage("Hi %late"), testUser)?.toSimple()?.text)
+        bot.aliasVars.remove("%late")
+    }
+
+    @Test
+    fun replaceAliasVarsLooksUpEachVarOncePerMessage() {
+        var lookups = 0
+        bot.aliasVars["%counted"] = { _, _ -> lookups++; "x" }
+        val result = replaceAliasVars(testChat, SimpleOutgoingMessage("%counted %counted %counted"), testUser)
+        assertEquals("x x x", result?.toSimple()?.text)
+        assertEquals(1, lookups)
+        bot.aliasVars.remove("%counted")
+    }
+
+    @Test
+    fun replaceAliasVarsReturnsMessageWithoutVarsUnchanged() {
+        val plain = SimpleOutgoingMessage("Nothing to replace here")
+        assertSame(plain, replaceAliasVars(testChat, plain, testUser))
+        val percent = SimpleOutgoingMessage("100% literal")
+        assertSame(percent, replaceAliasVars(testChat, percent, testUser))
+    }
+
     // ─── sendMessage(chat, message) ────────────────────────────────────────
 
     @Test
@@ -0,0 +1,149 @@
+import convergence.*
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import java.util.Collections
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+/** A protocol whose sends only finish when the test completes them, like Discord waiting out a rate limit. */
+private object SlowSendProtocol: Protocol("SlowSend") {
+    val sent: MutableList<String> = Collections.synchronizedList(mutableListOf())
+    val inFlight: MutableList<CompletableFuture<Boolean>> = Collections.synchronizedList(mutableListOf())
+
+    fun chat(name: String) = object: Chat(this, name) {
+        override fun toKey() = "SlowSendChat($name)"
+    }
+
+    /** Lets the oldest unfinished send go out. */
+    fun finishNext(succeeded: Boolean = true) {
+        val future = inFlight.removeAt(0)
+        if (succeeded)
+            future.complete(true)
+        else
+            future.completeExceptionally(IllegalStateException("Rate limited"))
+    }
+
+    override fun sendMessageAsync(chat: Chat, message: OutgoingMessage): CompletableFuture<Boolean> {
+        sent.add(message.toSimple().text)
+        return CompletableFuture<Boolean>().also { inFlight.add(it) }
+    }
+
+    override fun init() {}
+    override fun configLoaded() {}
+    override fun aliasCreated(alias: Alias) {}
+    override fun sendMessage(chat: Chat, message: OutgoingMessage) = false
+    override fun getChats(): List<Chat> = listOf()
+    override fun getBot(chat: Chat): User = UniversalUser
+    override fun getUsers(): List<User> = listOf()
+    override fun getUsers(chat: Chat): List<User> = listOf()
+    override fun getUserName(chat: Chat, user: User) = ""
+    override fun getChatName(chat: Chat) = chat.name
+    override fun commandScopeFromKey(key: String): CommandScope? = null
+    override fun userFromKey(key: String): User? = null
+}
+
+class OutboundQueueTest {
+    private val defaultCapacity = settings.outboundQueueCapacity
+
+    @Before
+    fun setup() {
+        resetGlobalState()
+        SlowSendProtocol.sent.clear()
+        SlowSendProtocol.inFlight.clear()
+    }
+
+    @After
+    fun teardown() {
+        settings.outboundQueueCapacity = defaultCapacity
+        while (SlowSendProtocol.inFlight.isNotEmpty())
+            SlowSendProtocol.finishNext()
+        resetGlobalState()
+    }
+
+    @Test
+    fun onlyOneMessagePerChatIsSentAtATime() {
+        val chat = SlowSendProtocol.chat("one")
+        val first = sendMessage(chat, "first")
+        val second = sendMessage(chat, "second")
+        assertEquals(listOf("first"), SlowSendProtocol.sent)
+        assertFalse(first.isDone)
+
+        SlowSendProtocol.finishNext()
+        assertTrue(first.get(1, TimeUnit.SECONDS))
+        assertEquals(listOf("first", "second"), SlowSendProtocol.sent)
+        SlowSendProtocol.finishNext()
+        assertTrue(second.get(1, TimeUnit.SECONDS))
+    }
+
+    @Test
+    fun moreUrgentMessagesGoFirst() {
+        val chat = SlowSendProtocol.chat("priority")
+        sendMessage(chat, "blocker", SendPriority.BRIDGE)
+        sendMessage(chat, "bridged", SendPriority.BRIDGE)
+        sendMessage(chat, "reminder", SendPriority.NOTIFICATION)
+        sendMessage(chat, "reply")
+        repeat(3) { SlowSendProtocol.finishNext() }
+        assertEquals(listOf("blocker", "reply", "reminder", "bridged"), SlowSendProtocol.sent)
+    }
+
+    @Test
+    fun otherChatsAreNotHeldUp() {
+        val busy = SlowSendProtocol.chat("busy")
+        sendMessage(busy, "busy 1")
+        sendMessage(busy, "busy 2")
+        sendMessage(SlowSendProtocol.chat("quiet"), "quiet")
+        assertEquals(listOf("busy 1", "quiet"), SlowSendProtocol.sent)
+    }
+
+    @Test
+    fun fullQueueDropsTheLeastUrgentMessages() {
+        settings.outboundQueueCapacity = 2
+        val chat = SlowSendProtocol.chat("full")
+        val droppedBefore = OutboundQueue.dropped(SendPriority.BRIDGE)
+        sendMessage(chat, "blocker")
+        val bridged = sendMessage(chat, "bridged", SendPriority.BRIDGE)
+        sendMessage(chat, "reminder", SendPriority.NOTIFICATION)
+        val reply = sendMessage(chat, "reply")
+        assertFalse(bridged.get(1, TimeUnit.SECONDS))
+        val anotherBridged = sendMessage(chat, "another bridged", SendPriority.BRIDGE)
+        assertFalse(anotherBridged.get(1, TimeUnit.SECONDS))
+        assertEquals(droppedBefore + 2, OutboundQueue.dropped(SendPriority.BRIDGE))
+
+        repeat(2) { SlowSendProtocol.finishNext() }
+        assertEquals(listOf("blocker", "reply", "reminder"), SlowSendProtocol.sent)
+        assertFalse(reply.isCompletedExceptionally)
+    }
+
+    @Test
+    fun failedSendsCompleteWithFalseAndDoNotStallTheChat() {
+        val chat = SlowSendProtocol.chat("failing")
+        val failuresBefore = OutboundQueue.failures
+        val failed = sendMessage(chat, "doomed")
+        val next = sendMessage(chat, "next")
+        SlowSendProtocol.finishNext(succeeded = false)
+        assertFalse(failed.get(1, TimeUnit.SECONDS))
+        assertEquals(failuresBefore + 1, OutboundQueue.failures)
+        SlowSendProtocol.finishNext()
+        assertTrue(next.get(1, TimeUnit.SECONDS))
+    }
+
+    @Test
+    fun waitTimeIsRecordedPerPriority() {
+        val before = OutboundQueue.waitTime(SendPriority.NOTIFICATION).count
+        val chat = SlowSendProtocol.chat("waits")
+        sendMessage(chat, "one", SendPriority.NOTIFICATION)
+        sendMessage(chat, "two", SendPriority.NOTIFICATION)
+        SlowSendProtocol.finishNext()
+        assertEquals(before + 2, OutboundQueue.waitTime(SendPriority.NOTIFICATION).count)
+    }
+
+    @Test
+    fun synchronousProtocolsSendStraightAway() {
+        assertFalse(sendMessage(testChat, "Universal never sends").get(1, TimeUnit.SECONDS))
+        assertFalse(sendMessage(testChat, null as String?).get(1, TimeUnit.SECONDS))
+    }
+}
@@ -1,4 +1,6 @@
+import convergence.CommandJournal
 import convergence.ScheduledCommand
+import convergence.ScheduledTask
 import convergence.Scheduler
 import convergence.User
 import convergence.settings
@@ -7,6 +9,9 @@ import org.junit.Before
 import org.junit.Test
 import java.time.OffsetDateTime
 import java.time.ZoneOffset
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.CyclicBarrier
+import java.util.concurrent.TimeUnit
 import kotlin.test.assertEquals
 import kotlin.test.assertFalse
 import kotlin.test.assertTrue
@@ -32,10 +37,11 @@ class SchedulerTest {
     }
 
     @Test
-    fun scheduleAddsToSerializedCommands() {
+    fun scheduleAddsToTheJournal() {
         val time = now.plusMinutes(10)
         Scheduler.schedule(testChat, testUser, "ping", listOf(), time)
-        assertTrue(settings.serializedCommands.isNotEmpty(), "serializedCommands should not be empty after scheduling")
+        assertEquals(1, CommandJournal.size, "The journal should have the command after scheduling")
+        assertTrue(settings.serializedCommands.isEmpty(), "Commands shouldn't be kept in settings anymore")
     }
 
     @Test
@@ -43,7 +49,7 @@ class SchedulerTest {
         val time = now.plusMinutes(5)
         Scheduler.schedule(testChat, testUser, "echo", listOf("a"), time)
         Scheduler.schedule(testChat, testUser, "echo", listOf("b"), time)
-        val ids = settings.serializedCommands.keys.toList()
+        val ids = Scheduler.getCommands().map { it.id }
         assertEquals(2, ids.size, "Should have 2 scheduled commands")
         assertTrue(ids[0] != ids[1], "IDs should be different")
     }
@@ -54,9 +60,9 @@ class SchedulerTest {
     fun unscheduleRemovesExistingCommand() {
         val time = now.plusMinutes(5)
         Scheduler.schedule(testChat, testUser, "ping", listOf(), time)
-        val id = settings.serializedCommands.keys.first()
+        val id = Scheduler.getCommands().first().id
         assertTrue(Scheduler.unschedule(id))
-        assertFalse(settings.serializedCommands.containsKey(id))
+        assertFalse(Scheduler.getCommands().any { it.id == id })
     }
 
     @Test
@@ -114,5 +120,128 @@ class SchedulerTest {
         Scheduler.loadFromFile()
         val all = Scheduler.getCommands()
         assertTrue(all.any { it.id == 42 }, "Should have loaded command with id 42")
+        assertTrue(settings.serializedCommands.isEmpty(), "They should only be kept in the journal once loaded")
+    }
+
+    // ─── runDue ─────────────────────────────────────────────────────────────
+
+    private fun millis(time: OffsetDateTime) = time.toInstant().toEpochMilli()
+
+    // Due items run on worker threads, so this schedules one that counts down [latch] once it's run.
+    private fun scheduleTask(time: OffsetDateTime, latch: CountDownLatch, ran: MutableList<String>, name: String) =
+        Scheduler.schedule(ScheduledTask(time) {
+            synchronized(ran) { ran.add(name) }
+            latch.countDown()
+        })
+
+    @Test
+    fun runDueOnlyRunsTasksThatAreDue() {
+        val ran = mutableListOf<String>()
+        val soon = CountDownLatch(1)
+        val later = CountDownLatch(1)
+        scheduleTask(now.plusMinutes(1), soon, ran, "soon")
+        scheduleTask(now.plusMinutes(5), later, ran, "later")
+        assertEquals(millis(now.plusMinutes(1)), Scheduler.runDue(millis(now)))
+        assertEquals(millis(now.plusMinutes(5)), Scheduler.runDue(millis(now.plusMinutes(2))))
+        assertTrue(soon.await(5, TimeUnit.SECONDS))
+        assertEquals(listOf("soon"), synchronized(ran) { ran.toList() }, "Nothing should run early")
+        assertEquals(Long.MAX_VALUE, Scheduler.runDue(millis(now.plusMinutes(5))))
+        assertTrue(later.await(5, TimeUnit.SECONDS))
+        assertEquals(listOf("soon", "later"), synchronized(ran) { ran.toList() })
+        assertEquals(0, Scheduler.pending)
+    }
+
+    @Test
+    fun tasksDueTogetherRunInParallel() {
+        // Each task waits for the other, so this only finishes if they run at the same time.
+        val barrier = CyclicBarrier(2)
+        val done = CountDownLatch(2)
+        repeat(2) {
+            Scheduler.schedule(ScheduledTask(now) {
+                barrier.await(5, TimeUnit.SECONDS)
+                done.countDown()
+            })
+        }
+        Scheduler.runDue(millis(now))
+        assertTrue(done.await(10, TimeUnit.SECONDS), "Tasks due at the same time should run in parallel")
+    }
+
+    @Test
+    fun slowTasksDoNotHoldUpTheScheduler() {
+        val release = CountDownLatch(1)
+        Scheduler.schedule(ScheduledTask(now) { release.await(10, TimeUnit.SECONDS) })
+        val started = System.nanoTime()
+        Scheduler.runDue(millis(now))
+        assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(5), "runDue shouldn't wait for tasks")
+        release.countDown()
+    }
+
+    @Test
+    fun tasksScheduledByTasksRunOnTheNextPass() {
+        val ran = mutableListOf<String>()
+        val first = CountDownLatch(1)
+        val second = CountDownLatch(1)
+        Scheduler.schedule(ScheduledTask(now) {
+            scheduleTask(now, second, ran, "second")
+            first.countDown()
+        })
+        Scheduler.runDue(millis(now))
+        assertTrue(first.await(5, TimeUnit.SECONDS))
+        assertEquals(1, Scheduler.pending)
+        Scheduler.runDue(millis(now))
+        assertTrue(second.await(5, TimeUnit.SECONDS))
+        assertEquals(listOf("second"), ran)
+    }
+
+    @Test
+    fun taskExceptionsDoNotStopOtherTasks() {
+        val ran = CountDownLatch(1)
+        Scheduler.schedule(ScheduledTask(now) { throw IllegalStateException("boom") })
+        Scheduler.schedule(ScheduledTask(now) { ran.countDown() })
+        Scheduler.runDue(millis(now))
+        assertTrue(ran.await(5, TimeUnit.SECONDS))
+    }
+
+    @Test
+    fun latenessAndRuntimeAreRecorded() {
+        val lateness = Scheduler.lateness.count
+        val runtime = Scheduler.runtime.count
+        Scheduler.schedule(ScheduledTask(now) { Thread.sleep(20) })
+        Scheduler.runDue(millis(now.plusSeconds(2)))
+        val deadline = System.currentTimeMillis() + 5000
+        while (Scheduler.runtime.count == runtime && System.currentTimeMillis() < deadline)
+            Thread.sleep(10)
+        assertEquals(lateness + 1, Scheduler.lateness.count)
+        assertEquals(runtime + 1, Scheduler.runtime.count)
+        assertTrue(Scheduler.lateness.max >= 2_000_000, "Lateness should be recorded in microseconds")
+        assertTrue(Scheduler.runtime.max >= 20_000, "Runtime should be recorded in microseconds")
+    }
+
+    @Test
+    fun unscheduledCommandsAreNotCounted() {
+        Scheduler.schedule(testChat, testUser, "ping", listOf(), now.plusMinutes(5))
+        assertEquals(1, Scheduler.pending)
+        assertTrue(Scheduler.unschedule(Scheduler.getCommands().first().id))
+        assertEquals(0, Scheduler.pending)
+        assertEquals(Long.MAX_VALUE, Scheduler.runDue(millis(now.plusMinutes(10))))
+        assertEquals(0, Scheduler.pending)
+    }
+
+    @Test
+    fun missedCommandsAreSkipped() {
+        val skipped = Scheduler.skipped
+        Scheduler.schedule(testChat, testUser, "ping", listOf(), now.minusMinutes(5))
+        Scheduler.runDue(millis(now))
+        assertEquals(skipped + 1, Scheduler.skipped)
+        assertTrue(Scheduler.getCommands().isEmpty())
+    }
+
+    @Test
+    fun loadFromFileKeepsCommandsAtTheSameTime() {
+        val time = now.plusMinutes(5)
+        settings.serializedCommands[1] = ScheduledCommand(time, testChat, testUser, "Test", "echo", listOf("a"), 1)
+        settings.serializedCommands[2] = ScheduledCommand(time, testChat, testUser, "Test", "echo", listOf("b"), 2)
+        Scheduler.loadFromFile()
+        assertEquals(2, Scheduler.pending)
     }
 }
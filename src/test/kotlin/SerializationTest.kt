@@ -9,10 +9,14 @@ import convergence.*
 import org.junit.After
 import org.junit.Before
 import java.net.URI
+import java.nio.file.Files
 import java.time.OffsetDateTime
 import java.time.ZoneOffset
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArraySet
 import kotlin.test.Test
 import kotlin.test.assertEquals
+import kotlin.test.assertIs
 
 // A state-free protocol whose scopes/users are fully reconstructable from their keys, so we can exercise the
 // real (de)serialization path (convergenceModule + the per-type converters) without any live protocol state.
@@ -71,7 +75,7 @@ class SerializationTest {
         resetGlobalState()
         if (SerProtocol !in bot.protocols) bot.protocols.add(SerProtocol)
         testCommand = Command.of(SerProtocol, "testcmd", listOf(), { _: List<String> -> null }, "help", "syntax")
-        bot.commands[SerProtocol] = mutableMapOf("testcmd" to testCommand)
+        registerCommand(testCommand)
     }
 
     @After
@@ -104,7 +108,6 @@ class SerializationTest {
         assertEquals(sampleData().aliases, data.aliases, "aliases did not round-trip")
         assertEquals(sampleData().commandDelimiters, data.commandDelimiters, "commandDelimiters did not round-trip")
         assertEquals(sampleData().linkedChats, data.linkedChats, "linkedChats did not round-trip")
-        assertEquals(sampleData().serializedCommands, data.serializedCommands, "serializedCommands did not round-trip")
         assertEquals(sampleData().syncedCalendars, data.syncedCalendars, "syncedCalendars did not round-trip")
         assertEquals(sampleData().timers, data.timers, "timers did not round-trip")
         assertEquals(
@@ -147,7 +150,7 @@ class SerializationTest {
     fun scheduledCommandKeepsLegacyFieldNames() {
         // ScheduledCommand serializes directly (no DTO) but must keep the chatKey/senderKey field names so
         // settings files written by the old DTO-based format still load.
-        val json = objectMapper.writeValueAsString(sampleData())
+        val json = objectMapper.writeValueAsString(sampleData().serializedCommands)
         assert(json.contains("\"chatKey\"")) { "expected chatKey in serialized output:\n$json" }
         assert(json.contains("\"senderKey\"")) { "expected senderKey in serialized output:\n$json" }
     }
@@ -156,7 +159,7 @@ class SerializationTest {
     fun roundTripsThroughSettingsSingleton() {
         // Exercises the exact production path: write the settings object, read back into a Settings instance.
         val data = sampleData()
-        settings.aliases.clearThen().putAll(data.aliases)
+        CommandRegistry.loadAliases(data.aliases)
         settings.commandDelimiters.clearThen().putAll(data.commandDelimiters)
         settings.linkedChats.clearThen().putAll(data.linkedChats)
         settings.serializedCommands.clearThen().putAll(data.serializedCommands)
@@ -168,4 +171,46 @@ class SerializationTest {
         val json = objectMapper.writeValueAsString(settings)
         assertMatches(objectMapper.readValue<Settings>(json))
     }
+
+    @Test
+    fun settingsAreReadIntoConcurrentMaps() {
+        // Commands run on several threads at once, so what they change has to stay safe to change after reading.
+        val data = sampleData().apply { serializedCommands = mutableMapOf() }
+        try {
+            settingsPath.toFile().writeText(objectMapper.writeValueAsString(data))
+            readSettings()
+            assertMatches(settings)
+            assertIs<ConcurrentHashMap<*, *>>(settings.commandDelimiters)
+            assertIs<ConcurrentHashMap<*, *>>(settings.linkedChats)
+            assertIs<CopyOnWriteArraySet<*>>(settings.linkedChats[SerChat(1)])
+            assertIs<ConcurrentHashMap<*, *>>(settings.imageUploadChannels)
+            assertIs<ConcurrentHashMap<*, *>>(settings.mentionChats[SerChat(1)]?.get(SerUser(2)))
+        } finally {
+            Files.deleteIfExists(settingsPath)
+            settings.aliases = mapOf()
+        }
+    }
+
+    @Test
+    fun readingOldSettingsMovesScheduledCommandsToTheJournal() {
+        val legacy = sampleData().serializedCommands
+        try {
+            settingsPath.toFile().writeText("""{"serializedCommands": ${objectMapper.writeValueAsString(legacy)}}""")
+            readSettings()
+            assertEquals(legacy.values.toList(), Scheduler.getCommands())
+            assertEquals(1, CommandJournal.size)
+            assert(!settingsPath.toFile().readText().contains("serializedCommands"))
+        } finally {
+            Files.deleteIfExists(settingsPath)
+        }
+    }
+
+    @Test
+    fun serializedCommandsAreReadButNotWritten() {
+        // They're kept in the CommandJournal now, and only read from settings.json to move them there.
+        val json = objectMapper.writeValueAsString(sampleData())
+        assert(!json.contains("serializedCommands")) { "serializedCommands shouldn't be written:\n$json" }
+        val legacy = """{"serializedCommands": ${objectMapper.writeValueAsString(sampleData().serializedCommands)}}"""
+        assertEquals(sampleData().serializedCommands, objectMapper.readValue<Settings>(legacy).serializedCommands)
+    }
 }
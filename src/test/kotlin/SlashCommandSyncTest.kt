@@ -0,0 +1,71 @@
+import convergence.*
+import convergence.discord.SlashCommandDefinition
+import convergence.discord.SlashCommandDiff
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNotEquals
+import kotlin.test.assertTrue
+
+class SlashCommandSyncTest {
+    private val echoCommand = Command.of(
+        UniversalProtocol, "Echo", listOf(ArgumentSpec("Message", ArgumentType.STRING)), ::echo, "Echoes.", "echo"
+    )
+    private val pingCommand = Command.of(UniversalProtocol, "ping", listOf(), ::ping, "Pong!", "ping")
+
+    @Before
+    fun setup() = resetGlobalState()
+
+    @After
+    fun teardown() = resetGlobalState()
+
+    @Test
+    fun hashIsStableAndCoversEveryField() {
+        val definition = SlashCommandDefinition.of(echoCommand)
+        assertEquals(definition.hash, SlashCommandDefinition.of(echoCommand.copy()).hash)
+        assertNotEquals(definition.hash, definition.copy(description = "Says things.").hash)
+        assertNotEquals(definition.hash, definition.copy(options = listOf()).hash)
+    }
+
+    @Test
+    fun aliasDefinitionOnlyAsksForArgsTheAliasDoesNotFill() {
+        val filled = SlashCommandDefinition.of(Alias(testChat, "Hi", echoCommand, listOf("hello")))
+        assertEquals("hi", filled.name)
+        assertTrue(filled.options.isEmpty())
+        assertEquals(1, SlashCommandDefinition.of(Alias(testChat, "say", echoCommand, listOf())).options.size)
+    }
+
+    @Test
+    fun diffIsEmptyWhenNothingChanged() {
+        val desired = listOf(SlashCommandDefinition.of(echoCommand), SlashCommandDefinition.of(pingCommand))
+        val pushed = desired.mapIndexed { i, it -> it.name to PushedSlashCommand(i.toLong(), it.hash) }.toMap()
+        assertTrue(SlashCommandDiff.of(pushed, desired).isEmpty)
+    }
+
+    @Test
+    fun diffOnlyUpsertsChangedOrNewCommands() {
+        val echoDefinition = SlashCommandDefinition.of(echoCommand)
+        val pingDefinition = SlashCommandDefinition.of(pingCommand)
+        val pushed = mapOf(
+            "echo" to PushedSlashCommand(1, echoDefinition.hash),
+            "ping" to PushedSlashCommand(2, "stale")
+        )
+        val newDefinition = SlashCommandDefinition("new", "New.", listOf())
+        val diff = SlashCommandDiff.of(pushed, listOf(echoDefinition, pingDefinition, newDefinition))
+        assertEquals(listOf(pingDefinition, newDefinition), diff.upserts)
+        assertTrue(diff.deletes.isEmpty())
+    }
+
+    @Test
+    fun diffDeletesCommandsThatAreGone() {
+        val echoDefinition = SlashCommandDefinition.of(echoCommand)
+        val pushed = mapOf(
+            "echo" to PushedSlashCommand(1, echoDefinition.hash),
+            "oldalias" to PushedSlashCommand(7, "whatever")
+        )
+        val diff = SlashCommandDiff.of(pushed, listOf(echoDefinition))
+        assertTrue(diff.upserts.isEmpty())
+        assertEquals(mapOf("oldalias" to PushedSlashCommand(7, "whatever")), diff.deletes)
+    }
+}
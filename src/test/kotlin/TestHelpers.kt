@@ -1,7 +1,12 @@
 import convergence.*
+import convergence.discord.ImageUploader
+import java.nio.file.Files
+
+// Anything that writes next to settings.json during tests writes here instead.
+private val testConvergencePath = Files.createTempDirectory("convergence-test")
 
 fun resetGlobalState() {
-    settings.aliases.clear()
+    convergencePath = testConvergencePath
     settings.timers.clear()
     settings.linkedChats.clear()
     settings.serializedCommands.clear()
@@ -12,8 +17,16 @@ fun resetGlobalState() {
     settings.reactServers.clear()
     settings.mentionChats.clear()
     settings.debugMode = false
-    bot.commands.remove(TestProtocol)
-    bot.commands.remove(UniversalProtocol)
     bot.chatMap.clear()
     bot.reverseChatMap.clear()
+    CommandRegistry.clear()
+    ParsedCommandCache.clear()
+    CommandMetrics.clear()
+    Bridge.clear()
+    AttachmentCache.clear()
+    ImageUploader.clear()
+    Scheduler.clear()
+    CommandJournal.clear()
+    Files.deleteIfExists(CommandJournal.defaultPath)
+    Files.deleteIfExists(testConvergencePath.resolve("uploadedImages.log"))
 }